@@ -0,0 +1,122 @@
+import java.util.Arrays;
+
+/**
+ * Call stack storing calls in preallocated arrays. Arrays grow when a root call records more calls than ever before on the thread and
+ * are reused afterwards, so recording a call does not allocate anything once the thread is warmed up.
+ *
+ * @author olivier martin
+ */
+public class ArrayCallStack extends CallStack {
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private int[]    methodIds        = new int[INITIAL_CAPACITY];
+  private int[]    deeps            = new int[INITIAL_CAPACITY];
+  private long[]   startTimes       = new long[INITIAL_CAPACITY];
+  private long[]   durationsInNanos = new long[INITIAL_CAPACITY];
+  private int[]    paramsStarts     = new int[INITIAL_CAPACITY];
+  private String[] thrown           = new String[INITIAL_CAPACITY];
+  private int[]    nestedCalls      = new int[INITIAL_CAPACITY];
+  private int[]    counts           = new int[INITIAL_CAPACITY];
+  private long[]   minsInNanos      = new long[INITIAL_CAPACITY];
+  private long[]   maxsInNanos      = new long[INITIAL_CAPACITY];
+  private int      size;
+
+  @Override int push(int methodId, int deep, long startTime) {
+    if (size == deeps.length) {
+      grow();
+    }
+    int index = size++;
+    this.methodIds[index] = methodId;
+    this.deeps[index] = deep;
+    this.startTimes[index] = startTime;
+    this.durationsInNanos[index] = 0;
+    this.paramsStarts[index] = params.size();
+    this.thrown[index] = null;
+    this.nestedCalls[index] = 0;
+    this.counts[index] = 1;
+    return index;
+  }
+
+  @Override void truncateCalls(int size) {
+    if (size < this.size) {
+      this.size = size;
+    }
+  }
+
+  @Override int size() {
+    return size;
+  }
+
+  @Override int methodId(int index) {
+    return methodIds[index];
+  }
+
+  @Override int deep(int index) {
+    return deeps[index];
+  }
+
+  @Override long startTime(int index) {
+    return startTimes[index];
+  }
+
+  @Override long durationInNanos(int index) {
+    return durationsInNanos[index];
+  }
+
+  @Override void durationInNanos(int index, long value) {
+    durationsInNanos[index] = value;
+  }
+
+  @Override int paramsStart(int index) {
+    return paramsStarts[index];
+  }
+
+  @Override String thrown(int index) {
+    return thrown[index];
+  }
+
+  @Override void thrown(int index, String exceptionClassName) {
+    thrown[index] = exceptionClassName;
+  }
+
+  @Override int nestedCalls(int index) {
+    return nestedCalls[index];
+  }
+
+  @Override void nestedCalls(int index, int value) {
+    nestedCalls[index] = value;
+  }
+
+  @Override int count(int index) {
+    return counts[index];
+  }
+
+  @Override long minInNanos(int index) {
+    return minsInNanos[index];
+  }
+
+  @Override long maxInNanos(int index) {
+    return maxsInNanos[index];
+  }
+
+  @Override void aggregate(int index, int count, long minInNanos, long maxInNanos) {
+    counts[index] = count;
+    minsInNanos[index] = minInNanos;
+    maxsInNanos[index] = maxInNanos;
+  }
+
+  private void grow() {
+    int capacity = deeps.length * 2;
+    methodIds = Arrays.copyOf(methodIds, capacity);
+    deeps = Arrays.copyOf(deeps, capacity);
+    startTimes = Arrays.copyOf(startTimes, capacity);
+    durationsInNanos = Arrays.copyOf(durationsInNanos, capacity);
+    paramsStarts = Arrays.copyOf(paramsStarts, capacity);
+    thrown = Arrays.copyOf(thrown, capacity);
+    nestedCalls = Arrays.copyOf(nestedCalls, capacity);
+    counts = Arrays.copyOf(counts, capacity);
+    minsInNanos = Arrays.copyOf(minsInNanos, capacity);
+    maxsInNanos = Arrays.copyOf(maxsInNanos, capacity);
+  }
+}
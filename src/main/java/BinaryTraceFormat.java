@@ -0,0 +1,251 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compact binary format. Files start with the {@link #MAGIC} bytes, a version byte and the cost of the probes in nanoseconds measured
+ * when the file was opened, see {@link ProbeCalibration}, followed by one record per root call:
+ * <ul>
+ *   <li>the size in bytes of the record, 0 marks the end of the content (segments are filled with 0 after the content)</li>
+ *   <li>the number of calls</li>
+ *   <li>for each call: the method id, the deep, the duration in nanoseconds, the number of calls aggregated in the entry followed by
+ *   the min and max durations in nanoseconds if greater than 1, the number of parameters and the parameters as UTF-8 strings, each
+ *   one preceded by its size in bytes, the class of the exception thrown by the call as a UTF-8 string preceded by its size in bytes,
+ *   or 0 if the call returned normally, and the number of calls recorded while the call was running</li>
+ * </ul>
+ * All numbers are unsigned variable length integers (7 bits per byte, least significant bits first). Method names are not written in
+ * the records, they are found in the dictionary written next to the output file. Use {@link TraceConverter} to convert a file to the
+ * JSON format.
+ *
+ * @author olivier martin
+ */
+public class BinaryTraceFormat extends TraceFormat {
+
+  public static final byte[] MAGIC   = {'J', 'P', 'A', 'B'};
+  public static final byte   VERSION = 5;
+
+  private static ThreadLocal<Encoder> encoderTL = new ThreadLocal<Encoder>() {
+    @Override protected Encoder initialValue() {
+      return new Encoder();
+    }
+  };
+
+  @Override public byte[] encode(CallStack callStack) {
+    int size = callStack.size();
+    if (size == 0) {
+      return null;
+    }
+    Encoder encoder = encoderTL.get();
+    encoder.reset();
+    encoder.writeVarLong(size);
+    for (int i = 0; i < size; i++) {
+      encoder.writeVarLong(callStack.methodId(i));
+      encoder.writeVarLong(callStack.deep(i));
+      encoder.writeVarLong(callStack.durationInNanos(i));
+      int count = callStack.count(i);
+      encoder.writeVarLong(count);
+      if (count > 1) {
+        encoder.writeVarLong(callStack.minInNanos(i));
+        encoder.writeVarLong(callStack.maxInNanos(i));
+      }
+      int paramCount = callStack.paramCount(i);
+      encoder.writeVarLong(paramCount);
+      for (int p = 0; p < paramCount; p++) {
+        byte[] bytes = callStack.paramValue(i, p).getBytes(StandardCharsets.UTF_8);
+        encoder.writeVarLong(bytes.length);
+        encoder.write(bytes);
+      }
+      String thrown = callStack.thrown(i);
+      if (thrown == null) {
+        encoder.writeVarLong(0);
+      } else {
+        byte[] bytes = thrown.getBytes(StandardCharsets.UTF_8);
+        encoder.writeVarLong(bytes.length);
+        encoder.write(bytes);
+      }
+      encoder.writeVarLong(callStack.nestedCalls(i));
+    }
+    return encoder.toRecord();
+  }
+
+  @Override public byte[] fileHeader() {
+    Encoder encoder = new Encoder();
+    encoder.write(MAGIC);
+    encoder.write(new byte[] {VERSION});
+    encoder.writeVarLong(ProbeCalibration.callCostInNanos());
+    return Arrays.copyOf(encoder.bytes, encoder.length);
+  }
+
+  @Override public byte[] signature() {
+    byte[] signature = Arrays.copyOf(MAGIC, MAGIC.length + 1);
+    signature[MAGIC.length] = VERSION;
+    return signature;
+  }
+
+  /**
+   * Read the header of a file.
+   *
+   * @return the cost of the probes in nanoseconds written in the header, -1 if the stream does not start with the header of this format
+   */
+  public static long readHeader(InputStream in) throws IOException {
+    for (byte b : MAGIC) {
+      if (in.read() != b) {
+        return -1;
+      }
+    }
+    if (in.read() != VERSION) {
+      return -1;
+    }
+    return readVarLong(in, false);
+  }
+
+  /**
+   * Read the next record into the call stack.
+   *
+   * @return false if there is no more record
+   */
+  public static boolean readRecord(InputStream in, CallStack callStack) throws IOException {
+    callStack.clear();
+    long recordSize = readVarLong(in, true);
+    if (recordSize <= 0) {
+      return false;
+    }
+    int size = (int) readVarLong(in, false);
+    for (int i = 0; i < size; i++) {
+      int methodId = (int) readVarLong(in, false);
+      int deep = (int) readVarLong(in, false);
+      long durationInNanos = readVarLong(in, false);
+      int count = (int) readVarLong(in, false);
+      long minInNanos = count > 1 ? readVarLong(in, false) : durationInNanos;
+      long maxInNanos = count > 1 ? readVarLong(in, false) : durationInNanos;
+      String[] paramValues = new String[(int) readVarLong(in, false)];
+      for (int p = 0; p < paramValues.length; p++) {
+        byte[] bytes = new byte[(int) readVarLong(in, false)];
+        readFully(in, bytes);
+        paramValues[p] = new String(bytes, StandardCharsets.UTF_8);
+      }
+      int thrownLength = (int) readVarLong(in, false);
+      String thrown = null;
+      if (thrownLength > 0) {
+        byte[] bytes = new byte[thrownLength];
+        readFully(in, bytes);
+        thrown = new String(bytes, StandardCharsets.UTF_8);
+      }
+      int index = callStack.push(methodId, deep, 0);
+      for (String paramValue : paramValues) {
+        callStack.params.add(paramValue);
+      }
+      callStack.durationInNanos(index, durationInNanos);
+      callStack.thrown(index, thrown);
+      callStack.nestedCalls(index, (int) readVarLong(in, false));
+      callStack.aggregate(index, count, minInNanos, maxInNanos);
+    }
+    return true;
+  }
+
+  /**
+   * @param endAllowed if true, -1 is returned at the end of the stream
+   */
+  private static long readVarLong(InputStream in, boolean endAllowed) throws IOException {
+    long value = 0;
+    int shift = 0;
+    int b;
+    do {
+      b = in.read();
+      if (b < 0) {
+        if (endAllowed && shift == 0) {
+          return -1;
+        }
+        throw new EOFException("Truncated record");
+      }
+      value |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+
+  /**
+   * Read an unsigned variable length integer at the position of the buffer and move the position after it.
+   */
+  static long readVarLong(ByteBuffer buffer) throws EOFException {
+    long value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      if (!buffer.hasRemaining()) {
+        throw new EOFException("Truncated record");
+      }
+      b = buffer.get();
+      value |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+
+  private static void readFully(InputStream in, byte[] bytes) throws IOException {
+    int read = 0;
+    while (read < bytes.length) {
+      int count = in.read(bytes, read, bytes.length - read);
+      if (count < 0) {
+        throw new EOFException("Truncated record");
+      }
+      read += count;
+    }
+  }
+
+  /**
+   * Growable buffer reused by a thread to encode its records.
+   */
+  private static class Encoder {
+    private byte[] bytes = new byte[4096];
+    private int    length;
+
+    void reset() {
+      length = 0;
+    }
+
+    void writeVarLong(long value) {
+      ensureCapacity(10);
+      while ((value & ~0x7FL) != 0) {
+        bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      bytes[length++] = (byte) value;
+    }
+
+    void write(byte[] src) {
+      ensureCapacity(src.length);
+      System.arraycopy(src, 0, bytes, length, src.length);
+      length += src.length;
+    }
+
+    /**
+     * @return the content encoded preceded by its size
+     */
+    byte[] toRecord() {
+      int sizeLength = 1;
+      for (long v = length >>> 7; v != 0; v >>>= 7) {
+        sizeLength++;
+      }
+      byte[] record = new byte[sizeLength + length];
+      int pos = 0;
+      long value = length;
+      while ((value & ~0x7FL) != 0) {
+        record[pos++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      record[pos++] = (byte) value;
+      System.arraycopy(bytes, 0, record, pos, length);
+      return record;
+    }
+
+    private void ensureCapacity(int needed) {
+      if (length + needed > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + needed));
+      }
+    }
+  }
+}
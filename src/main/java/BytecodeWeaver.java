@@ -0,0 +1,327 @@
+import static java.lang.String.format;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.Descriptor;
+import javassist.bytecode.ExceptionTable;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+import javassist.bytecode.StackMapTable;
+
+/**
+ * Weave probes by rewriting the instructions of tracked methods in one pass, without compiling source code and without loading the
+ * classes referenced by the class. The probe call is inserted at the beginning of the method and before each return instruction.
+ * <p>
+ * The index returned by {@link PerfAgentMonitor#beforeMethod(int, boolean)} is not kept in a local variable, the probe at
+ * the end of the method calls {@link PerfAgentMonitor#afterMethodById(int, boolean)} which finds it in the call stack. Locals of the
+ * method are unchanged, so its stack map frames stay valid and are only moved by the instructions inserted. Exceptions thrown by the
+ * method are caught by a handler appended to the code, which calls {@link PerfAgentMonitor#afterThrowingById(Throwable, int, boolean)}
+ * and throws the exception again. In constructors, the probe and the handler start after the call to the super constructor, which can
+ * not be covered by a handler: a constructor whose super constructor throws is not recorded. Tasks submitted to executors are not
+ * wrapped by this weaver.
+ *
+ * @author olivier martin
+ */
+public class BytecodeWeaver extends Weaver {
+
+  private static final String MONITOR_CLASS        = "PerfAgentMonitor";
+  static final int            INVOKESPECIAL_LENGTH = 3;
+
+  private final boolean trackParameters;
+  private final boolean trackConstructors;
+  private final boolean trackStaticInitializers;
+
+  /**
+   * @param trackParameters         specify if parameters of all methods are tracked
+   * @param trackConstructors       specify if constructors of tracked classes can be tracked, named <code>&lt;init&gt;</code>
+   * @param trackStaticInitializers specify if static initializers of tracked classes can be tracked, named <code>&lt;clinit&gt;</code>
+   */
+  public BytecodeWeaver(boolean trackParameters, boolean trackConstructors, boolean trackStaticInitializers) {
+    this.trackParameters = trackParameters;
+    this.trackConstructors = trackConstructors;
+    this.trackStaticInitializers = trackStaticInitializers;
+  }
+
+  @Override public byte[] weave(ClassLoader loader, String className, byte[] classfileBuffer, ClassMatcher.Methods trackedMethods,
+      boolean debug) throws Exception {
+    ClassFile classFile = new ClassFile(new DataInputStream(new ByteArrayInputStream(classfileBuffer)));
+    ConstPool constPool = classFile.getConstPool();
+    Set<String> methodsModified = new HashSet<>();
+    for (Object o : classFile.getMethods()) {
+      MethodInfo method = (MethodInfo) o;
+      CodeAttribute code = method.getCodeAttribute();
+      boolean constructor = method.isConstructor();
+      // a constructor without a call to a super constructor is the one of java.lang.Object
+      if (constructor && !trackConstructors || method.isStaticInitializer() && !trackStaticInitializers || code == null
+          || isEmpty(code, constructor) || constructor && code.iterator().skipConstructor() < 0) {
+        continue;
+      }
+      String longName = className + "." + method.getName() + Descriptor.toString(method.getDescriptor());
+      String nameWithParams = longName.substring(className.length() + 1);
+      if (trackedMethods.isTracked(method.getName(), nameWithParams)) {
+        int methodId = MethodRegistry.register(longName);
+        StartupProfile.methodWoven(loader, className, methodId, method.isStaticInitializer());
+        boolean trackParams = trackedMethods.isParamTracked(method.getName(), nameWithParams) || trackParameters;
+        weave(method, code, constPool, methodId, debug, trackParams, classFile.getMajorVersion() >= ClassFile.JAVA_6);
+        methodsModified.add(longName);
+      }
+    }
+    if (methodsModified.isEmpty()) {
+      if (debug) {
+        System.out.println(format("Class %s is not modified because no method was marked as tracked", className));
+      }
+      return null;
+    }
+    if (debug) {
+      System.out.println(format("Class %s was modified. Methods tracked: %s.", className, methodsModified.toString()));
+    }
+    methodsWoven(methodsModified.size());
+    ByteArrayOutputStream out = new ByteArrayOutputStream(classfileBuffer.length + 32 * methodsModified.size());
+    classFile.write(new DataOutputStream(out));
+    return out.toByteArray();
+  }
+
+  private static void weave(MethodInfo method, CodeAttribute code, ConstPool constPool, int methodId, boolean debug,
+      boolean trackParams, boolean hasStackMap) throws BadBytecode {
+    Bytecode before = new Bytecode(constPool);
+    before.addIconst(methodId);
+    before.addIconst(debug ? 1 : 0);
+    before.addInvokestatic(MONITOR_CLASS, "beforeMethod", "(IZ)I");
+    if (trackParams) {
+      addParamValues(before, method);
+    }
+    before.addOpcode(Opcode.POP);
+
+    Bytecode after = new Bytecode(constPool);
+    after.addIconst(methodId);
+    after.addIconst(debug ? 1 : 0);
+    after.addInvokestatic(MONITOR_CLASS, "afterMethodById", "(IZ)V");
+    byte[] afterCode = after.get();
+
+    // the exception is on the stack when the handler starts
+    Bytecode handler = new Bytecode(constPool);
+    handler.addOpcode(Opcode.DUP);
+    handler.addIconst(methodId);
+    handler.addIconst(debug ? 1 : 0);
+    handler.addInvokestatic(MONITOR_CLASS, "afterThrowingById", "(Ljava/lang/Throwable;IZ)V");
+    handler.addOpcode(Opcode.ATHROW);
+
+    CodeIterator iterator = code.iterator();
+    while (iterator.hasNext()) {
+      int index = iterator.next();
+      int opcode = iterator.byteAt(index);
+      if (opcode >= Opcode.IRETURN && opcode <= Opcode.RETURN) {
+        // jumps to the return instruction now jump to the probe
+        iterator.insert(index, afterCode);
+      }
+    }
+    // this is not initialized before the end of the call to the super constructor, a handler can not cover that code, so the probe
+    // of a constructor starts the call after it: a probe before it would never be ended if the super constructor throws
+    int probePos = method.isConstructor() ? code.iterator().skipConstructor() + INVOKESPECIAL_LENGTH : 0;
+    // jumps to the first instruction, for example a loop starting the method, must not run the probe again
+    // the gap is longer than the probe when padding is added to keep switch instructions aligned
+    int codeLength = code.getCodeLength();
+    iterator.insertEx(probePos, before.get());
+    int gap = code.getCodeLength() - codeLength;
+    if (probePos == 0) {
+      shiftFirstFrame(code, gap);
+    }
+    int handlerPos = iterator.append(handler.get());
+    addHandler(code, probePos + gap, afterCode.length, handlerPos);
+    if (hasStackMap) {
+      addHandlerFrame(code, constPool, handlerPos);
+    }
+    // the first probe runs on an empty stack, the last one on the values of the return instruction, the handler on the exception
+    code.setMaxStack(Math.max(Math.max(before.getMaxStack(), code.getMaxStack() + after.getMaxStack()), 1 + handler.getMaxStack()));
+  }
+
+  /**
+   * Cover the code of the method with the handler, except the probes. Entries are added at the end of the exception table so that
+   * handlers of the method are used first.
+   */
+  private static void addHandler(CodeAttribute code, int start, int afterCodeLength, int handlerPos) throws BadBytecode {
+    ExceptionTable exceptionTable = code.getExceptionTable();
+    CodeIterator iterator = code.iterator();
+    iterator.move(start);
+    while (iterator.hasNext()) {
+      int index = iterator.next();
+      if (index >= handlerPos) {
+        break;
+      }
+      int opcode = iterator.byteAt(index);
+      if (opcode >= Opcode.IRETURN && opcode <= Opcode.RETURN) {
+        // each return instruction follows a probe
+        if (index - afterCodeLength > start) {
+          exceptionTable.add(exceptionTable.size(), start, index - afterCodeLength, handlerPos, 0);
+        }
+        start = index + 1;
+      }
+    }
+    if (start < handlerPos) {
+      exceptionTable.add(exceptionTable.size(), start, handlerPos, handlerPos, 0);
+    }
+  }
+
+  /**
+   * The handler does not use the locals of the method, its frame only has the exception on the stack. It is the last frame of the
+   * method since the handler is at the end of the code.
+   */
+  private static void addHandlerFrame(CodeAttribute code, ConstPool constPool, int handlerPos) throws BadBytecode {
+    StackMapTable stackMap = (StackMapTable) code.getAttribute(StackMapTable.tag);
+    final int[] lastOffset = {-1};
+    if (stackMap != null) {
+      new StackMapTable.Walker(stackMap) {
+        @Override public void sameFrame(int pos, int offsetDelta) {
+          lastOffset[0] += offsetDelta + 1;
+        }
+
+        @Override public void sameLocals(int pos, int offsetDelta, int stackTag, int stackData) {
+          lastOffset[0] += offsetDelta + 1;
+        }
+
+        @Override public void chopFrame(int pos, int offsetDelta, int k) {
+          lastOffset[0] += offsetDelta + 1;
+        }
+
+        @Override public void appendFrame(int pos, int offsetDelta, int[] tags, int[] data) {
+          lastOffset[0] += offsetDelta + 1;
+        }
+
+        @Override public void fullFrame(int pos, int offsetDelta, int[] localTags, int[] localData, int[] stackTags, int[] stackData) {
+          lastOffset[0] += offsetDelta + 1;
+        }
+      }.parse();
+    }
+    StackMapTable.Writer writer = new StackMapTable.Writer(16);
+    writer.fullFrame(handlerPos - lastOffset[0] - 1, new int[0], new int[0], new int[] {StackMapTable.OBJECT},
+        new int[] {constPool.addClassInfo("java.lang.Throwable")});
+    if (stackMap == null) {
+      code.setAttribute(writer.toStackMapTable(constPool));
+      return;
+    }
+    byte[] info = stackMap.get();
+    byte[] frame = writer.toByteArray();
+    byte[] appended = new byte[info.length + frame.length - 2];
+    System.arraycopy(info, 0, appended, 0, info.length);
+    System.arraycopy(frame, 2, appended, info.length, frame.length - 2);
+    int numOfEntries = ((info[0] & 0xFF) << 8 | info[1] & 0xFF) + 1;
+    appended[0] = (byte) (numOfEntries >> 8);
+    appended[1] = (byte) numOfEntries;
+    stackMap.set(appended);
+  }
+
+  /**
+   * Javassist does not move the first stack map frame when code is inserted before the first instruction, the other frames have an
+   * offset relative to the previous one so they are already right.
+   */
+  private static void shiftFirstFrame(CodeAttribute code, int gap) {
+    StackMapTable stackMap = (StackMapTable) code.getAttribute(StackMapTable.tag);
+    if (stackMap == null) {
+      return;
+    }
+    byte[] info = stackMap.get();
+    if (((info[0] & 0xFF) << 8 | info[1] & 0xFF) == 0) {
+      return;
+    }
+    int frameType = info[2] & 0xFF;
+    if (frameType >= 247) {
+      // frames with an explicit offset
+      int offset = ((info[3] & 0xFF) << 8 | info[4] & 0xFF) + gap;
+      info[3] = (byte) (offset >> 8);
+      info[4] = (byte) offset;
+      stackMap.set(info);
+      return;
+    }
+    // same_frame (0-63) or same_locals_1_stack_item_frame (64-127) with the offset in the frame type
+    int base = frameType < 64 ? 0 : 64;
+    int offset = frameType - base + gap;
+    if (offset < 64) {
+      info[2] = (byte) (base + offset);
+      stackMap.set(info);
+    } else {
+      // too far for the compact form, use same_frame_extended (251) or same_locals_1_stack_item_frame_extended (247)
+      byte[] extended = new byte[info.length + 2];
+      System.arraycopy(info, 0, extended, 0, 2);
+      extended[2] = (byte) (base == 0 ? 251 : 247);
+      extended[3] = (byte) (offset >> 8);
+      extended[4] = (byte) offset;
+      System.arraycopy(info, 3, extended, 5, info.length - 3);
+      stackMap.set(extended);
+    }
+  }
+
+  /**
+   * Same as the CtMethod.isEmpty() check of the Javassist weaver.
+   *
+   * @return true if the method only returns, or if the constructor only calls the super constructor without parameters
+   */
+  private static boolean isEmpty(CodeAttribute code, boolean constructor) {
+    byte[] bytes = code.getCode();
+    if (constructor) {
+      return bytes.length == 5 && (bytes[0] & 0xFF) == Opcode.ALOAD_0 && (bytes[1] & 0xFF) == Opcode.INVOKESPECIAL
+          && (bytes[4] & 0xFF) == Opcode.RETURN;
+    }
+    return bytes.length == 1 && (bytes[0] & 0xFF) == Opcode.RETURN;
+  }
+
+  /**
+   * Record the values of the parameters with the index on the top of the stack. Each value is given to the variant of
+   * {@link PerfAgentMonitor#param(int, Object)} taking its type, so primitive values are not boxed.
+   */
+  private static void addParamValues(Bytecode bytecode, MethodInfo method) {
+    String descriptor = method.getDescriptor();
+    int local = (method.getAccessFlags() & AccessFlag.STATIC) != 0 ? 0 : 1;
+    int i = 1;
+    while (descriptor.charAt(i) != ')') {
+      int end = i;
+      while (descriptor.charAt(end) == '[') {
+        end++;
+      }
+      end = descriptor.charAt(end) == 'L' ? descriptor.indexOf(';', end) + 1 : end + 1;
+      bytecode.addOpcode(Opcode.DUP);
+      char type = end - i == 1 ? descriptor.charAt(i) : 'L';
+      local += addLoad(bytecode, type, local);
+      bytecode.addInvokestatic(MONITOR_CLASS, "param", "(I" + (type == 'L' ? "Ljava/lang/Object;" : String.valueOf(type)) + ")V");
+      i = end;
+    }
+  }
+
+  /**
+   * @return the number of local variable slots used by the value
+   */
+  private static int addLoad(Bytecode bytecode, char type, int local) {
+    switch (type) {
+      case 'Z':
+      case 'B':
+      case 'C':
+      case 'S':
+      case 'I':
+        bytecode.addIload(local);
+        return 1;
+      case 'J':
+        bytecode.addLload(local);
+        return 2;
+      case 'F':
+        bytecode.addFload(local);
+        return 1;
+      case 'D':
+        bytecode.addDload(local);
+        return 2;
+      default:
+        bytecode.addAload(local);
+        return 1;
+    }
+  }
+}
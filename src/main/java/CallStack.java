@@ -0,0 +1,212 @@
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Calls recorded on a thread since the beginning of the current root call. Calls are stored in the order they started so a call is
+ * always followed by its sub calls.
+ * <p>
+ * A call can aggregate several calls of the same method, it then has a count greater than 1 and its duration is the total time of
+ * the calls. Calls exceeding the limits of a root call are folded this way under the call running when they started, see
+ * {@link #fold(int, int, long, long, int)}.
+ *
+ * @author olivier martin
+ */
+public abstract class CallStack {
+
+  /** deep of the call currently running on the thread. 0 means that no tracked method is running. */
+  int deep;
+
+  /** deep of the call currently running in a root call which is not sampled. 0 if the current root call is recorded. */
+  int unsampledDeep;
+
+  /** number of root calls not sampled since the last sampled one, see {@link RootSampler} */
+  int rootsSinceLastSample;
+
+  /** number of calls recorded since the beginning of the root call */
+  int probes;
+
+  /** values of the tracked parameters of the calls, in the order of the calls */
+  final ParamValues params = new ParamValues();
+
+  /** method and start time of the call which exceeded the limits of the root call, its sub calls are counted in unsampledDeep */
+  int     overflowMethodId;
+  long    overflowStartTime;
+  boolean overflowing;
+
+  /** index in the stack of the calls currently running, by deep */
+  private int[] runningIndexes = new int[16];
+  /** index in the stack of the calls created by {@link #fold(int, int, long, long, int)}, in increasing order */
+  private int[] foldedIndexes  = new int[16];
+  private int   foldedSize;
+
+  /**
+   * Append a call to the stack. Values of its parameters are added to {@link #params} before the next call is pushed.
+   *
+   * @return the index of the call in the stack
+   */
+  abstract int push(int methodId, int deep, long startTime);
+
+  /**
+   * Remove all calls.
+   */
+  void clear() {
+    truncate(0);
+  }
+
+  /**
+   * Remove the calls starting from the given index. Calls are stored in the order they started, so removing a completed call with its
+   * sub calls does not change the index of the calls still running.
+   */
+  void truncate(int size) {
+    while (foldedSize > 0 && foldedIndexes[foldedSize - 1] >= size) {
+      foldedSize--;
+    }
+    if (size < size()) {
+      params.truncate(paramsStart(size));
+    }
+    truncateCalls(size);
+  }
+
+  abstract void truncateCalls(int size);
+
+  abstract int size();
+
+  abstract int methodId(int index);
+
+  abstract int deep(int index);
+
+  abstract long startTime(int index);
+
+  abstract long durationInNanos(int index);
+
+  abstract void durationInNanos(int index, long value);
+
+  /**
+   * @return the index in {@link #params} of the first parameter value of the call
+   */
+  abstract int paramsStart(int index);
+
+  /**
+   * @return the number of parameter values of the call, 0 if its parameters are not tracked
+   */
+  int paramCount(int index) {
+    return (index + 1 < size() ? paramsStart(index + 1) : params.size()) - paramsStart(index);
+  }
+
+  /**
+   * @return the value of a parameter of the call converted to text
+   */
+  String paramValue(int index, int param) {
+    return params.text(paramsStart(index) + param);
+  }
+
+  /**
+   * @return the class name of the exception thrown by the call, null if it returned normally
+   */
+  abstract String thrown(int index);
+
+  abstract void thrown(int index, String exceptionClassName);
+
+  /**
+   * @return the number of calls recorded while the call was running, including the calls removed because they were too short. Their
+   * probes are part of the duration of the call, see {@link ProbeCalibration}.
+   */
+  abstract int nestedCalls(int index);
+
+  abstract void nestedCalls(int index, int value);
+
+  /**
+   * @return the number of calls aggregated in this entry, 1 for a single call
+   */
+  abstract int count(int index);
+
+  abstract long minInNanos(int index);
+
+  abstract long maxInNanos(int index);
+
+  abstract void aggregate(int index, int count, long minInNanos, long maxInNanos);
+
+  /**
+   * Remember the index of a call which is running.
+   */
+  void running(int deep, int index) {
+    if (deep >= runningIndexes.length) {
+      runningIndexes = Arrays.copyOf(runningIndexes, Math.max(runningIndexes.length * 2, deep + 1));
+    }
+    runningIndexes[deep] = index;
+  }
+
+  /**
+   * @return the index of the call running at the given deep
+   */
+  int runningIndex(int deep) {
+    return runningIndexes[deep];
+  }
+
+  /**
+   * Merge a completed call without sub calls into the previous call of the stack if it is a call of the same method with the same
+   * parameters and the same outcome under the same parent and without sub calls.
+   *
+   * @return true if the call was merged and removed from the stack
+   */
+  boolean collapse(int index) {
+    int previous = index - 1;
+    if (previous < 0 || index != size() - 1 || deep(previous) != deep(index) || methodId(previous) != methodId(index)
+        || paramCount(previous) != paramCount(index) || !params.equals(paramsStart(previous), paramsStart(index), paramCount(index))
+        || !Objects.equals(thrown(previous), thrown(index))) {
+      return false;
+    }
+    aggregate(previous, count(previous) + count(index), Math.min(min(previous), min(index)), Math.max(max(previous), max(index)));
+    durationInNanos(previous, durationInNanos(previous) + durationInNanos(index));
+    nestedCalls(previous, nestedCalls(previous) + nestedCalls(index));
+    truncate(index);
+    return true;
+  }
+
+  private long min(int index) {
+    return count(index) == 1 ? durationInNanos(index) : minInNanos(index);
+  }
+
+  private long max(int index) {
+    return count(index) == 1 ? durationInNanos(index) : maxInNanos(index);
+  }
+
+  /**
+   * Add a completed call to the entry aggregating calls of its method under the call running at the given deep. The entry is created
+   * if it does not exist yet.
+   *
+   * @param maxFoldedCalls the maximum number of entries created by folding in a root call
+   * @return false if the call was ignored because the maximum number of entries is reached
+   */
+  boolean fold(int parentDeep, int methodId, long startTime, long durationInNanos, int maxFoldedCalls) {
+    int parentIndex = runningIndexes[parentDeep];
+    // entries created before the parent started are not under it
+    for (int i = foldedSize - 1; i >= 0 && foldedIndexes[i] > parentIndex; i--) {
+      int index = foldedIndexes[i];
+      if (methodId(index) == methodId && deep(index) == parentDeep + 1) {
+        aggregate(index, count(index) + 1, Math.min(minInNanos(index), durationInNanos), Math.max(maxInNanos(index), durationInNanos));
+        durationInNanos(index, durationInNanos(index) + durationInNanos);
+        return true;
+      }
+    }
+    if (foldedSize >= maxFoldedCalls) {
+      return false;
+    }
+    int index = push(methodId, parentDeep + 1, startTime);
+    durationInNanos(index, durationInNanos);
+    aggregate(index, 1, durationInNanos, durationInNanos);
+    if (foldedSize == foldedIndexes.length) {
+      foldedIndexes = Arrays.copyOf(foldedIndexes, foldedSize * 2);
+    }
+    foldedIndexes[foldedSize++] = index;
+    return true;
+  }
+
+  int incrDeep() {
+    return ++deep;
+  }
+
+  int decrDeep() {
+    return --deep;
+  }
+}
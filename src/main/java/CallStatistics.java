@@ -0,0 +1,163 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Statistics aggregated per method and per caller to callee edge when calls are aggregated instead of being written for each root
+ * call. Memory used only depends on the number of methods tracked and the statistics are dumped periodically as one JSON line:
+ * <pre>
+ * {"@aggregate":{"timestamp":..,"methods":[{"method":"..","count":..,"total":"..ms","max":"..ms","histogram":{"1us":..,"2us":..}}],
+ *   "edges":[{"caller":"..","callee":"..","count":..,"total":"..ms","max":"..ms","histogram":{..}}]}}
+ * </pre>
+ * Values are cumulated since the JVM started. Histogram keys are the exclusive upper bound of each non empty bucket.
+ *
+ * @author olivier martin
+ */
+public class CallStatistics {
+
+  private static volatile MethodStatistics[] methods = new MethodStatistics[1024];
+  private static volatile Callees[]          callees = new Callees[1024];
+
+  /**
+   * Statistics of the methods called by a method. Arrays are replaced when a new callee is found, callees of a method are usually few.
+   */
+  private static class Callees {
+    final int[]              calleeIds;
+    final MethodStatistics[] statistics;
+
+    Callees(int[] calleeIds, MethodStatistics[] statistics) {
+      this.calleeIds = calleeIds;
+      this.statistics = statistics;
+    }
+  }
+
+  /**
+   * Record a call.
+   *
+   * @param callerId the id of the calling method or -1 for a root call
+   * @param methodId the id of the method called
+   */
+  public static void record(int callerId, int methodId, long durationInMicros) {
+    methodStatistics(methodId).record(durationInMicros);
+    if (callerId >= 0) {
+      edgeStatistics(callerId, methodId).record(durationInMicros);
+    }
+  }
+
+  /**
+   * @return the statistics as a JSON line
+   */
+  public static byte[] dump() {
+    StringBuilder sb = new StringBuilder("{\"@aggregate\":{\"timestamp\":").append(System.currentTimeMillis()).append(",\"methods\":[");
+    MethodStatistics[] current = methods;
+    boolean first = true;
+    for (int methodId = 0; methodId < current.length; methodId++) {
+      MethodStatistics statistics = current[methodId];
+      if (statistics != null) {
+        if (!first) {
+          sb.append(',');
+        }
+        first = false;
+        sb.append("{\"method\":\"").append(MethodRegistry.name(methodId)).append('"');
+        appendStatistics(sb, statistics);
+      }
+    }
+    sb.append("],\"edges\":[");
+    Callees[] currentCallees = callees;
+    first = true;
+    for (int callerId = 0; callerId < currentCallees.length; callerId++) {
+      Callees calleesOfCaller = currentCallees[callerId];
+      if (calleesOfCaller != null) {
+        for (int i = 0; i < calleesOfCaller.calleeIds.length; i++) {
+          if (!first) {
+            sb.append(',');
+          }
+          first = false;
+          sb.append("{\"caller\":\"").append(MethodRegistry.name(callerId))
+              .append("\",\"callee\":\"").append(MethodRegistry.name(calleesOfCaller.calleeIds[i])).append('"');
+          appendStatistics(sb, calleesOfCaller.statistics[i]);
+        }
+      }
+    }
+    sb.append("]}}\n");
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static void appendStatistics(StringBuilder sb, MethodStatistics statistics) {
+    sb.append(",\"count\":").append(statistics.count())
+        .append(",\"total\":\"").append((double) statistics.totalInMicros() / 1000).append("ms\"")
+        .append(",\"max\":\"").append((double) statistics.maxInMicros() / 1000).append("ms\"")
+        .append(",\"histogram\":{");
+    boolean first = true;
+    for (int bucket = 0; bucket < MethodStatistics.NB_BUCKETS; bucket++) {
+      long count = statistics.bucketCount(bucket);
+      if (count > 0) {
+        if (!first) {
+          sb.append(',');
+        }
+        first = false;
+        sb.append('"').append(MethodStatistics.bucketUpperBound(bucket)).append("us\":").append(count);
+      }
+    }
+    sb.append('}').append('}');
+  }
+
+  private static MethodStatistics methodStatistics(int methodId) {
+    MethodStatistics[] current = methods;
+    MethodStatistics statistics = methodId < current.length ? current[methodId] : null;
+    if (statistics == null) {
+      statistics = createMethodStatistics(methodId);
+    }
+    return statistics;
+  }
+
+  private static synchronized MethodStatistics createMethodStatistics(int methodId) {
+    MethodStatistics[] current = methods;
+    if (methodId >= current.length) {
+      current = Arrays.copyOf(current, Math.max(current.length * 2, methodId + 1));
+    }
+    MethodStatistics statistics = current[methodId];
+    if (statistics == null) {
+      statistics = new MethodStatistics();
+      current[methodId] = statistics;
+    }
+    methods = current;
+    return statistics;
+  }
+
+  private static MethodStatistics edgeStatistics(int callerId, int calleeId) {
+    Callees[] current = callees;
+    Callees calleesOfCaller = callerId < current.length ? current[callerId] : null;
+    if (calleesOfCaller != null) {
+      for (int i = 0; i < calleesOfCaller.calleeIds.length; i++) {
+        if (calleesOfCaller.calleeIds[i] == calleeId) {
+          return calleesOfCaller.statistics[i];
+        }
+      }
+    }
+    return createEdgeStatistics(callerId, calleeId);
+  }
+
+  private static synchronized MethodStatistics createEdgeStatistics(int callerId, int calleeId) {
+    Callees[] current = callees;
+    if (callerId >= current.length) {
+      current = Arrays.copyOf(current, Math.max(current.length * 2, callerId + 1));
+    }
+    Callees calleesOfCaller = current[callerId];
+    int nbCallees = 0;
+    if (calleesOfCaller != null) {
+      nbCallees = calleesOfCaller.calleeIds.length;
+      for (int i = 0; i < nbCallees; i++) {
+        if (calleesOfCaller.calleeIds[i] == calleeId) {
+          return calleesOfCaller.statistics[i];
+        }
+      }
+    }
+    int[] calleeIds = calleesOfCaller != null ? Arrays.copyOf(calleesOfCaller.calleeIds, nbCallees + 1) : new int[1];
+    MethodStatistics[] statistics = calleesOfCaller != null ? Arrays.copyOf(calleesOfCaller.statistics, nbCallees + 1) : new MethodStatistics[1];
+    calleeIds[nbCallees] = calleeId;
+    statistics[nbCallees] = new MethodStatistics();
+    current[callerId] = new Callees(calleeIds, statistics);
+    callees = current;
+    return statistics[nbCallees];
+  }
+}
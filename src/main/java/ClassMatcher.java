@@ -0,0 +1,201 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+/**
+ * Classes and methods to track, compiled from the configuration into a prefix tree of internal class names (with slashes) so the
+ * tracked and untracked entries of a loaded class are found in one pass over its name. A class matching no entry only costs the walk
+ * of the first characters it shares with an entry.
+ * <p>
+ * Entries keep the semantics of the configuration file: a class name ending with '*' matches the classes starting with the name
+ * without its last two characters, the longest one wins, and an exact class name wins over names ending with '*'.
+ *
+ * @author olivier martin
+ */
+public class ClassMatcher {
+
+  private final Node root = new Node();
+
+  /**
+   * @param trackedClasses   methods tracked by class name, with the parameters tracking
+   * @param untrackedClasses methods untracked by class name
+   */
+  public ClassMatcher(Map<String, Pair<Map<String, Boolean>, Boolean>> trackedClasses,
+      Map<String, Pair<Map<String, Boolean>, Boolean>> untrackedClasses) {
+    for (Map.Entry<String, Pair<Map<String, Boolean>, Boolean>> entry : trackedClasses.entrySet()) {
+      add(entry.getKey(), new MethodPatterns(entry.getValue()), true);
+    }
+    for (Map.Entry<String, Pair<Map<String, Boolean>, Boolean>> entry : untrackedClasses.entrySet()) {
+      add(entry.getKey(), new MethodPatterns(entry.getValue()), false);
+    }
+  }
+
+  private void add(String key, MethodPatterns methods, boolean tracked) {
+    boolean pattern = key.endsWith("*");
+    String prefix = pattern ? key.substring(0, Math.max(0, key.length() - 2)) : key;
+    Node node = root;
+    for (int i = 0; i < prefix.length(); i++) {
+      char c = prefix.charAt(i);
+      node = node.child(c == '.' ? '/' : c, true);
+    }
+    if (tracked) {
+      if (pattern) {
+        node.trackedPattern = methods;
+      } else {
+        node.tracked = methods;
+      }
+    } else {
+      if (pattern) {
+        node.untrackedPattern = methods;
+      } else {
+        node.untracked = methods;
+      }
+    }
+  }
+
+  /**
+   * @param classNameWithSlashes the internal name of a class, for example <code>java/util/ArrayList</code>
+   * @return the methods tracked in the class, null if the class is not tracked
+   */
+  public Methods match(String classNameWithSlashes) {
+    if (classNameWithSlashes == null) {
+      return null;
+    }
+    MethodPatterns tracked = null;
+    MethodPatterns untracked = null;
+    Node node = root;
+    int i = 0;
+    while (node != null) {
+      if (node.trackedPattern != null) {
+        tracked = node.trackedPattern;
+      }
+      if (node.untrackedPattern != null) {
+        untracked = node.untrackedPattern;
+      }
+      if (i == classNameWithSlashes.length()) {
+        if (node.tracked != null) {
+          tracked = node.tracked;
+        }
+        if (node.untracked != null) {
+          untracked = node.untracked;
+        }
+        break;
+      }
+      node = node.child(classNameWithSlashes.charAt(i++), false);
+    }
+    if (tracked == null || untracked != null && untracked.all()) {
+      return null;
+    }
+    return new Methods(tracked, untracked);
+  }
+
+  /**
+   * Methods tracked in a class. Methods are matched by their name and by their name followed by the types of their parameters, for
+   * example <code>remove</code> and <code>remove(int)</code>.
+   */
+  public static class Methods {
+    private final MethodPatterns tracked;
+    private final MethodPatterns untracked;
+
+    private Methods(MethodPatterns tracked, MethodPatterns untracked) {
+      this.tracked = tracked;
+      this.untracked = untracked;
+    }
+
+    public boolean isTracked(String name, String nameWithParams) {
+      return (tracked.all() || tracked.find(name, nameWithParams) != null)
+          && (untracked == null || untracked.find(name, nameWithParams) == null);
+    }
+
+    public boolean isParamTracked(String name, String nameWithParams) {
+      Boolean trackParams = tracked.find(name, nameWithParams);
+      return trackParams != null ? trackParams : tracked.trackParams;
+    }
+  }
+
+  /**
+   * Methods of a class entry: exact names and names ending with '*', longest first.
+   */
+  private static class MethodPatterns {
+    private final boolean              trackParams;
+    private final Map<String, Boolean> names             = new HashMap<>();
+    private final List<String>         prefixes          = new ArrayList<>();
+    private final List<Boolean>        prefixTrackParams = new ArrayList<>();
+
+    MethodPatterns(Pair<Map<String, Boolean>, Boolean> entry) {
+      this.trackParams = entry.getRight();
+      List<String> patterns = new ArrayList<>();
+      for (Map.Entry<String, Boolean> method : entry.getLeft().entrySet()) {
+        if (method.getKey().endsWith("*")) {
+          patterns.add(method.getKey());
+        } else {
+          names.put(method.getKey(), method.getValue());
+        }
+      }
+      Collections.sort(patterns, new Comparator<String>() {
+        @Override public int compare(String o1, String o2) {
+          return o2.length() - o1.length();
+        }
+      });
+      for (String pattern : patterns) {
+        prefixes.add(pattern.substring(0, pattern.length() - 1));
+        prefixTrackParams.add(entry.getLeft().get(pattern));
+      }
+    }
+
+    /**
+     * @return true if the entry has no method, which means all the methods of the class
+     */
+    boolean all() {
+      return names.isEmpty() && prefixes.isEmpty();
+    }
+
+    /**
+     * @return the parameters tracking of the method entry matching the method, null if there is none
+     */
+    Boolean find(String name, String nameWithParams) {
+      Boolean trackParams = names.get(nameWithParams);
+      if (trackParams == null) {
+        trackParams = names.get(name);
+      }
+      for (int i = 0; trackParams == null && i < prefixes.size(); i++) {
+        if (nameWithParams.startsWith(prefixes.get(i))) {
+          trackParams = prefixTrackParams.get(i);
+        }
+      }
+      return trackParams;
+    }
+  }
+
+  private static class Node {
+    private char[]         chars    = new char[0];
+    private Node[]         children = new Node[0];
+    private MethodPatterns tracked;
+    private MethodPatterns trackedPattern;
+    private MethodPatterns untracked;
+    private MethodPatterns untrackedPattern;
+
+    Node child(char c, boolean create) {
+      for (int i = 0; i < chars.length; i++) {
+        if (chars[i] == c) {
+          return children[i];
+        }
+      }
+      if (!create) {
+        return null;
+      }
+      Node child = new Node();
+      chars = Arrays.copyOf(chars, chars.length + 1);
+      children = Arrays.copyOf(children, children.length + 1);
+      chars[chars.length - 1] = c;
+      children[children.length - 1] = child;
+      return child;
+    }
+  }
+}
@@ -0,0 +1,19 @@
+/**
+ * Source of the times read by the probes of {@link PerfAgentMonitor}. Times are in nanoseconds from an arbitrary origin, only
+ * differences between two times of the same clock are meaningful.
+ *
+ * @author olivier martin
+ */
+public abstract class Clock {
+
+  /**
+   * @return the current time in nanoseconds
+   */
+  public abstract long nanoTime();
+
+  /**
+   * Called once the configuration is loaded, before the first call is recorded.
+   */
+  public void start() {
+  }
+}
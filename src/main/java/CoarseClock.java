@@ -0,0 +1,41 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Clock updated by a background thread at a fixed resolution. Reading it is a volatile read instead of a system call, which matters
+ * for very short methods called very often. A call shorter than the resolution can be recorded with a duration of 0, and the
+ * durations of other calls are only accurate to the resolution, so it fits measures of calls of a millisecond or more.
+ *
+ * @author olivier martin
+ */
+public class CoarseClock extends Clock implements Runnable {
+
+  public static final long DEFAULT_RESOLUTION_IN_MICROS = 100;
+
+  private final    long resolutionInNanos;
+  private volatile long time = System.nanoTime();
+
+  /**
+   * @param resolutionInMicros the interval between two updates of the time
+   */
+  public CoarseClock(long resolutionInMicros) {
+    this.resolutionInNanos = TimeUnit.MICROSECONDS.toNanos(resolutionInMicros);
+  }
+
+  @Override public long nanoTime() {
+    return time;
+  }
+
+  @Override public void start() {
+    Thread thread = new Thread(this, "JavaPerfAgent-clock");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @Override public void run() {
+    while (true) {
+      time = System.nanoTime();
+      LockSupport.parkNanos(this, resolutionInNanos);
+    }
+  }
+}
@@ -0,0 +1,226 @@
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Read result files written by a {@link CompressedTraceOutput}. A line is found with the index of blocks and only the block containing it
+ * is decompressed. Blocks written after the last entry of the index, whose entry is not written yet or which is lost, are found by
+ * reading the sizes of blocks. An incomplete block at the end of a file being written is ignored.
+ *
+ * @author olivier martin
+ */
+public class CompressedTraceInput {
+
+  private CompressedTraceInput() {
+  }
+
+  /**
+   * Decompress blocks one after the other, reusing its buffers.
+   */
+  private static class BlockReader {
+    final Inflater inflater   = new Inflater();
+    byte[]         compressed = new byte[0];
+    byte[]         content    = new byte[0];
+    int            length;
+
+    /**
+     * @return false at the end of the file or at an incomplete block
+     */
+    boolean read(DataInput in) throws IOException {
+      int compressedLength;
+      try {
+        compressedLength = in.readInt();
+        length = in.readInt();
+        if (compressed.length < compressedLength) {
+          compressed = new byte[compressedLength];
+        }
+        in.readFully(compressed, 0, compressedLength);
+      } catch (EOFException e) {
+        length = 0;
+        return false;
+      }
+      if (content.length < length) {
+        content = new byte[length];
+      }
+      inflater.reset();
+      inflater.setInput(compressed, 0, compressedLength);
+      try {
+        int count = 0;
+        while (count < length) {
+          int inflated = inflater.inflate(content, count, length - count);
+          if (inflated == 0 && (inflater.needsInput() || inflater.finished())) {
+            throw new IOException("Truncated compressed block");
+          }
+          count += inflated;
+        }
+      } catch (DataFormatException e) {
+        throw new IOException("Invalid compressed block", e);
+      }
+      return true;
+    }
+
+    void close() {
+      inflater.end();
+    }
+  }
+
+  /**
+   * @return true if the file starts with the magic bytes of a file written by a {@link CompressedTraceOutput}
+   */
+  public static boolean isCompressed(File file) throws IOException {
+    byte[] magic = new byte[CompressedTraceOutput.MAGIC.length];
+    try (InputStream in = new FileInputStream(file)) {
+      int count = 0;
+      int read;
+      while (count < magic.length && (read = in.read(magic, count, magic.length - count)) > 0) {
+        count += read;
+      }
+      return count == magic.length && Arrays.equals(magic, CompressedTraceOutput.MAGIC);
+    }
+  }
+
+  /**
+   * @return the content of the file, decompressed if it was written by a {@link CompressedTraceOutput}
+   */
+  public static InputStream open(File file) throws IOException {
+    if (!isCompressed(file)) {
+      return new FileInputStream(file);
+    }
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      skipFileStart(in, file);
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
+    return new InputStream() {
+      private final BlockReader reader = new BlockReader();
+      private       int         position;
+
+      @Override public int read() throws IOException {
+        return fill() ? reader.content[position++] & 0xFF : -1;
+      }
+
+      @Override public int read(byte[] bytes, int offset, int count) throws IOException {
+        if (count == 0) {
+          return 0;
+        }
+        if (!fill()) {
+          return -1;
+        }
+        int read = Math.min(count, reader.length - position);
+        System.arraycopy(reader.content, position, bytes, offset, read);
+        position += read;
+        return read;
+      }
+
+      private boolean fill() throws IOException {
+        while (position == reader.length) {
+          position = 0;
+          if (!reader.read(in)) {
+            return false;
+          }
+        }
+        return true;
+      }
+
+      @Override public void close() throws IOException {
+        reader.close();
+        in.close();
+      }
+    };
+  }
+
+  /**
+   * Count the lines of the complete blocks of a file, an incomplete block at its end is the last block written when the writer stopped
+   * or the disk was full.
+   *
+   * @return the number of lines and the offset of the end of the last complete block
+   */
+  static long[] completeBlocks(File file) throws IOException {
+    BlockReader reader = new BlockReader();
+    try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+      skipFileStart(in, file);
+      long lines = 0;
+      long end = in.getFilePointer();
+      while (reader.read(in)) {
+        lines += CompressedTraceOutput.countLines(reader.content, 0, reader.length);
+        end = in.getFilePointer();
+      }
+      return new long[] {lines, end};
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * @param lineIndex the index of the line, from 0
+   * @return the line without its end of line, or null if the file has less lines
+   */
+  public static String readLine(File file, long lineIndex) throws IOException {
+    long offset = CompressedTraceOutput.MAGIC.length + 1;
+    long firstLine = 0;
+    File indexFile = new File(file.getPath() + CompressedTraceOutput.INDEX_SUFFIX);
+    if (indexFile.exists()) {
+      try (RandomAccessFile index = new RandomAccessFile(indexFile, "r")) {
+        // the last block whose first line is before the line
+        long low = 0;
+        long high = index.length() / CompressedTraceOutput.INDEX_ENTRY_SIZE - 1;
+        while (low <= high) {
+          long middle = (low + high) >>> 1;
+          index.seek(middle * CompressedTraceOutput.INDEX_ENTRY_SIZE);
+          long entryOffset = index.readLong();
+          long entryFirstLine = index.readLong();
+          if (entryFirstLine <= lineIndex) {
+            offset = entryOffset;
+            firstLine = entryFirstLine;
+            low = middle + 1;
+          } else {
+            high = middle - 1;
+          }
+        }
+      }
+    }
+    BlockReader reader = new BlockReader();
+    try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+      if (offset == CompressedTraceOutput.MAGIC.length + 1) {
+        skipFileStart(in, file);
+      } else {
+        in.seek(offset);
+      }
+      while (reader.read(in)) {
+        int start = 0;
+        for (int i = 0; i < reader.length; i++) {
+          if (reader.content[i] == '\n') {
+            if (firstLine == lineIndex) {
+              return new String(reader.content, start, i - start, StandardCharsets.UTF_8);
+            }
+            firstLine++;
+            start = i + 1;
+          }
+        }
+      }
+      return null;
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static void skipFileStart(DataInput in, File file) throws IOException {
+    in.skipBytes(CompressedTraceOutput.MAGIC.length);
+    int version = in.readByte();
+    if (version != CompressedTraceOutput.VERSION) {
+      throw new IOException("Unsupported version " + version + " of compressed file " + file);
+    }
+  }
+}
@@ -0,0 +1,179 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Append results to a single file as independently compressed blocks, so that a reader can decompress only the block containing the
+ * line it needs, see {@link CompressedTraceInput}. Files start with the {@link #MAGIC} bytes and a version byte, followed by blocks
+ * made of the compressed size and the uncompressed size as ints, then the content compressed with deflate. The file header is the
+ * beginning of the first block and a result is never split between blocks.
+ * <p>
+ * A block is written when it reaches the block size, or when the writer flushes if it is older than {@link #MAX_BLOCK_AGE_IN_SECONDS},
+ * so results can be read shortly after they are written. After each block, an entry of {@link #INDEX_ENTRY_SIZE} bytes is appended to
+ * the index file named after the output file with the {@link #INDEX_SUFFIX} suffix: the offset of the block in the file and the
+ * number of lines written before it, as longs. Results appended to the file of a previous run are written after its last complete
+ * block, an incomplete block, for example the last one when the disk was full, is removed.
+ *
+ * @author olivier martin
+ */
+public class CompressedTraceOutput extends TraceOutput {
+
+  public static final int DEFAULT_BLOCK_SIZE_IN_KILOBYTES = 256;
+
+  static final byte[] MAGIC                    = {'J', 'P', 'A', 'Z'};
+  static final byte   VERSION                  = 1;
+  static final String INDEX_SUFFIX             = ".blocks";
+  static final int    BLOCK_HEADER_SIZE        = 8;
+  static final int    INDEX_ENTRY_SIZE         = 16;
+  static final long   MAX_BLOCK_AGE_IN_SECONDS = 5;
+
+  private final String     filePath;
+  private final byte[]     fileHeader;
+  private final byte[]     block;
+  private final Deflater   deflater   = new Deflater(Deflater.BEST_SPEED);
+  private final ByteBuffer header     = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+  private final ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+  private       byte[]     compressed;
+  private       int        blockLength;
+  private       long       blockStartTime;
+  /** lines written before the current block */
+  private       long       lines;
+  private       long       blockLines;
+  private       FileChannel channel;
+  private       FileChannel indexChannel;
+
+  /**
+   * @param blockSize the size of the content of a block before compression
+   */
+  public CompressedTraceOutput(String filePath, byte[] fileHeader, int blockSize) {
+    this.filePath = filePath;
+    this.fileHeader = fileHeader;
+    this.block = new byte[blockSize];
+    this.compressed = new byte[blockSize + blockSize / 8 + 64];
+  }
+
+  @Override public void open() throws IOException {
+    File file = new File(filePath);
+    long completeLength = 0;
+    if (file.length() > 0) {
+      // results are appended to a file of a previous run, the index goes on from its number of lines
+      if (!CompressedTraceInput.isCompressed(file)) {
+        throw new IOException(filePath + " is not a compressed result file");
+      }
+      long[] completeBlocks = CompressedTraceInput.completeBlocks(file);
+      // the header is in the first block, a file without a complete block is written again from its start
+      if (completeBlocks[1] > MAGIC.length + 1) {
+        lines = completeBlocks[0];
+        completeLength = completeBlocks[1];
+      }
+    }
+    File indexFile = new File(filePath + INDEX_SUFFIX);
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    // blocks appended after an incomplete block could not be read, it is removed with its index entry if it has one
+    channel.truncate(completeLength);
+    indexChannel.truncate(completeLength > 0 ? indexLength(indexFile, completeLength) : 0);
+    if (completeLength == 0) {
+      ByteBuffer start = ByteBuffer.allocate(MAGIC.length + 1).put(MAGIC).put(VERSION);
+      start.flip();
+      FileTraceOutput.writeFully(channel, start);
+      write(fileHeader);
+    }
+  }
+
+  @Override public void write(byte[] content) throws IOException {
+    if (content.length > block.length - blockLength) {
+      writeBlock();
+      if (content.length > block.length) {
+        writeBlock(content, content.length, countLines(content, 0, content.length));
+        return;
+      }
+    }
+    if (blockLength == 0) {
+      blockStartTime = System.nanoTime();
+    }
+    System.arraycopy(content, 0, block, blockLength, content.length);
+    blockLength += content.length;
+    blockLines += countLines(content, 0, content.length);
+  }
+
+  /**
+   * Write the current block if it is old enough, small blocks are not compressed as well.
+   */
+  @Override public void flush() throws IOException {
+    if (blockLength > 0 && System.nanoTime() - blockStartTime >= TimeUnit.SECONDS.toNanos(MAX_BLOCK_AGE_IN_SECONDS)) {
+      writeBlock();
+    }
+  }
+
+  @Override public void close() throws IOException {
+    writeBlock();
+    channel.close();
+    indexChannel.close();
+    deflater.end();
+  }
+
+  private void writeBlock() throws IOException {
+    if (blockLength > 0) {
+      writeBlock(block, blockLength, blockLines);
+      blockLength = 0;
+      blockLines = 0;
+    }
+  }
+
+  private void writeBlock(byte[] content, int length, long contentLines) throws IOException {
+    deflater.reset();
+    deflater.setInput(content, 0, length);
+    deflater.finish();
+    int compressedLength = 0;
+    while (!deflater.finished()) {
+      if (compressedLength == compressed.length) {
+        compressed = Arrays.copyOf(compressed, compressed.length * 2);
+      }
+      compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+    }
+    long offset = channel.size();
+    header.clear();
+    header.putInt(compressedLength).putInt(length).flip();
+    FileTraceOutput.writeFully(channel, header);
+    FileTraceOutput.writeFully(channel, ByteBuffer.wrap(compressed, 0, compressedLength));
+    // the entry is written after the block, a reader never finds an entry of a block not written yet
+    indexEntry.clear();
+    indexEntry.putLong(offset).putLong(lines).flip();
+    FileTraceOutput.writeFully(indexChannel, indexEntry);
+    lines += contentLines;
+  }
+
+  /**
+   * @return the length of the index without the entries of the blocks starting at or after the offset, nor an incomplete entry
+   */
+  private static long indexLength(File indexFile, long offset) throws IOException {
+    try (RandomAccessFile index = new RandomAccessFile(indexFile, "r")) {
+      long entries = index.length() / INDEX_ENTRY_SIZE;
+      while (entries > 0) {
+        index.seek((entries - 1) * INDEX_ENTRY_SIZE);
+        if (index.readLong() < offset) {
+          break;
+        }
+        entries--;
+      }
+      return entries * INDEX_ENTRY_SIZE;
+    }
+  }
+
+  static int countLines(byte[] content, int offset, int length) {
+    int count = 0;
+    for (int i = offset; i < offset + length; i++) {
+      if (content[i] == '\n') {
+        count++;
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,60 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Append results to a single file. Results are gathered in a buffer which is written when full or when flushed.
+ *
+ * @author olivier martin
+ */
+public class FileTraceOutput extends TraceOutput {
+
+  private static final int BUFFER_SIZE = 256 * 1024;
+
+  private final String      filePath;
+  private final byte[]      fileHeader;
+  private final ByteBuffer  buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  private       FileChannel channel;
+
+  public FileTraceOutput(String filePath, byte[] fileHeader) {
+    this.filePath = filePath;
+    this.fileHeader = fileHeader;
+  }
+
+  @Override public void open() throws IOException {
+    channel = FileChannel.open(new File(filePath).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    if (channel.size() == 0) {
+      writeFully(channel, ByteBuffer.wrap(fileHeader));
+    }
+  }
+
+  @Override public void write(byte[] content) throws IOException {
+    if (content.length > buffer.remaining()) {
+      flush();
+      if (content.length > buffer.capacity()) {
+        writeFully(channel, ByteBuffer.wrap(content));
+        return;
+      }
+    }
+    buffer.put(content);
+  }
+
+  @Override public void flush() throws IOException {
+    buffer.flip();
+    writeFully(channel, buffer);
+    buffer.clear();
+  }
+
+  @Override public void close() throws IOException {
+    flush();
+    channel.close();
+  }
+
+  static void writeFully(FileChannel channel, ByteBuffer src) throws IOException {
+    while (src.hasRemaining()) {
+      channel.write(src);
+    }
+  }
+}
@@ -0,0 +1,243 @@
+import static java.lang.String.format;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import javassist.CannotCompileException;
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.CtBehavior;
+import javassist.CtClass;
+import javassist.CtConstructor;
+import javassist.CtMethod;
+import javassist.LoaderClassPath;
+import javassist.NotFoundException;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.Descriptor;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+import javassist.expr.ExprEditor;
+import javassist.expr.MethodCall;
+
+/**
+ * Weave probes by compiling source code with Javassist. This is the default weaver.
+ * <p>
+ * In constructors, the exception handler only covers the code after the call to the super constructor, which can not be covered by a
+ * handler, a constructor throwing before is ended when its caller ends, see {@link PerfAgentMonitor#afterMethod(int, boolean)}.
+ *
+ * @author olivier martin
+ */
+public class JavassistWeaver extends Weaver {
+
+  private final boolean                     trackParameters;
+  private final boolean                     trackExecutorTasks;
+  private final boolean                     trackConstructors;
+  private final boolean                     trackStaticInitializers;
+  /** pool of classes visible from the JDK, parent of the pools of class loaders */
+  private final ClassPool                   systemClassPool = new ClassPool(true);
+  /** pools by class loader. A pool is released when its class loader is garbage collected, for example when a webapp is undeployed */
+  private final Map<ClassLoader, ClassPool> classPools      = new WeakHashMap<>();
+
+  /**
+   * @param trackParameters    specify if parameters of all methods are tracked
+   * @param trackExecutorTasks specify if tasks submitted to executors are wrapped, see {@link PerfAgentMonitor#wrapTask(Runnable)}
+   * @param trackConstructors       specify if constructors of tracked classes can be tracked, named <code>&lt;init&gt;</code>
+   * @param trackStaticInitializers specify if static initializers of tracked classes can be tracked, named <code>&lt;clinit&gt;</code>
+   */
+  public JavassistWeaver(boolean trackParameters, boolean trackExecutorTasks, boolean trackConstructors,
+      boolean trackStaticInitializers) {
+    this.trackParameters = trackParameters;
+    this.trackExecutorTasks = trackExecutorTasks;
+    this.trackConstructors = trackConstructors;
+    this.trackStaticInitializers = trackStaticInitializers;
+  }
+
+  @Override public byte[] weave(ClassLoader loader, String className, byte[] classfileBuffer, ClassMatcher.Methods trackedMethods,
+      boolean debug) throws Exception {
+    byte[] byteCode;
+    ClassPool cp = classPool(loader);
+    // the class is built from the bytes given by the JVM, it may not be found by its name from any class path
+    CtClass cc = cp.makeClass(new ByteArrayInputStream(classfileBuffer), false);
+    try {
+      if (!cc.isFrozen()) {
+        boolean isModified = false;
+        Set<String> methodsModified = new HashSet<>();
+        for (CtMethod m : cc.getDeclaredMethods()) {
+          isModified |= weave(loader, cp, m, m.getName(), className, trackedMethods, debug, methodsModified);
+        }
+        if (trackConstructors) {
+          for (CtConstructor c : cc.getDeclaredConstructors()) {
+            isModified |= weave(loader, cp, c, MethodInfo.nameInit, className, trackedMethods, debug, methodsModified);
+          }
+        }
+        CtConstructor initializer = cc.getClassInitializer();
+        if (trackStaticInitializers && initializer != null) {
+          isModified |= weave(loader, cp, initializer, MethodInfo.nameClinit, className, trackedMethods, debug, methodsModified);
+        }
+        if(isModified) {
+          if(debug) {
+            System.out.println(format("Class %s was modified. Methods tracked: %s.", className, methodsModified.toString()));
+          }
+          byteCode = cc.toBytecode();
+          methodsWoven(methodsModified.size());
+          return byteCode;
+        } else {
+          if(debug) {
+            System.out.println(format("Class %s is not modified because no method was marked as tracked", className));
+          }
+        }
+      } else {
+        if(debug) {
+          System.out.println(format("Class %s is frozen. Cant modified it with agent code%n", className));
+        }
+      }
+    } finally {
+      // the class is made again from its bytes when it is retransformed, it is not kept in the pool even if weaving fails
+      cc.detach();
+    }
+    return null;
+  }
+
+  /**
+   * Add the probes to a method, a constructor or a static initializer if it is tracked.
+   *
+   * @param name the name of the method, <code>&lt;init&gt;</code> or <code>&lt;clinit&gt;</code>
+   * @return true if the probes were added
+   */
+  private boolean weave(ClassLoader loader, ClassPool cp, CtBehavior m, String name, String className,
+      ClassMatcher.Methods trackedMethods, boolean debug, Set<String> methodsModified) throws Exception {
+    String nameWithParams = name + Descriptor.toString(m.getSignature());
+    if (!trackedMethods.isTracked(name, nameWithParams) || m.isEmpty() || m.getMethodInfo().getCodeAttribute() == null) {
+      return false;
+    }
+    String longName = className + "." + nameWithParams;
+    methodsModified.add(longName);
+    int methodId = MethodRegistry.register(longName);
+    StartupProfile.methodWoven(loader, className, methodId, m instanceof CtConstructor && ((CtConstructor) m).isClassInitializer());
+    if (trackExecutorTasks) {
+      m.instrument(new ExecutorTaskWrapper(cp));
+    }
+    boolean constructor = m instanceof CtConstructor && ((CtConstructor) m).isConstructor();
+    if (!constructor) {
+      // the handler is added before the probes so that it only covers the real code. Local variables are not visible from its
+      // source, the index is found in the call stack
+      m.addCatch("{ PerfAgentMonitor.afterThrowingById($e, " + methodId + ", " + debug + "); throw $e; }",
+          cp.get("java.lang.Throwable"));
+    }
+    // the probe of a constructor runs after the call to the super constructor, so that the handler covers the whole call. Local
+    // variables added to the constructor are not visible from there, the index is only kept by the probe and found in the call stack
+    // at the end of the call
+    StringBuilder before;
+    String index;
+    if (constructor) {
+      index = "index";
+      before = new StringBuilder("{ int index = PerfAgentMonitor.beforeMethod(" + methodId + ", " + debug + ");");
+    } else {
+      index = "monitorsIndex";
+      m.addLocalVariable("monitorsIndex", CtClass.intType);
+      before = new StringBuilder("{ monitorsIndex = PerfAgentMonitor.beforeMethod(" + methodId + ", " + debug + ");");
+    }
+    if(trackedMethods.isParamTracked(name, nameWithParams) || trackParameters) {
+      // one call per parameter, the variant taking the type of the parameter is chosen so primitive values are not boxed
+      for (int i = 1; i <= Descriptor.numOfParameters(m.getSignature()); i++) {
+        before.append(" PerfAgentMonitor.param(").append(index).append(", $").append(i).append(");");
+      }
+    }
+    if (constructor) {
+      CodeAttribute code = m.getMethodInfo().getCodeAttribute();
+      int codeLength = code.getCodeLength();
+      ((CtConstructor) m).insertBeforeBody(before.append(" }").toString());
+      int probeLength = code.getCodeLength() - codeLength;
+      m.insertAfter("{PerfAgentMonitor.afterMethodById(" + methodId + ", " + debug + ");}");
+      addConstructorCatch(cp, (CtConstructor) m, probeLength, methodId, debug);
+    } else {
+      m.insertBefore(before.append(" }").toString());
+      m.insertAfter("{PerfAgentMonitor.afterMethod(monitorsIndex, "+debug+");}");
+    }
+    return true;
+  }
+
+  /**
+   * Cover the code of the constructor after the probe starting the call with a handler ending the call. A handler added with
+   * {@link CtBehavior#addCatch(String, CtClass)} would cover the whole code, including the call to the super constructor where this is
+   * not initialized yet.
+   *
+   * @param probeLength the length of the probe inserted after the call to the super constructor
+   */
+  private static void addConstructorCatch(ClassPool cp, CtConstructor c, int probeLength, int methodId, boolean debug)
+      throws BadBytecode {
+    MethodInfo method = c.getMethodInfo();
+    CodeAttribute code = method.getCodeAttribute();
+    CodeIterator iterator = code.iterator();
+    int superCall = iterator.skipConstructor();
+    if (superCall < 0) {
+      return;
+    }
+    int start = superCall + BytecodeWeaver.INVOKESPECIAL_LENGTH + probeLength;
+    int end = code.getCodeLength();
+    // the exception is on the stack when the handler starts
+    Bytecode handler = new Bytecode(method.getConstPool());
+    handler.addOpcode(Opcode.DUP);
+    handler.addIconst(methodId);
+    handler.addIconst(debug ? 1 : 0);
+    handler.addInvokestatic("PerfAgentMonitor", "afterThrowingById", "(Ljava/lang/Throwable;IZ)V");
+    handler.addOpcode(Opcode.ATHROW);
+    int handlerPos = iterator.append(handler.get());
+    code.getExceptionTable().add(start, end, handlerPos, 0);
+    code.setMaxStack(Math.max(code.getMaxStack(), 1 + handler.getMaxStack()));
+    method.rebuildStackMapIf6(cp, c.getDeclaringClass().getClassFile());
+  }
+
+  /**
+   * @return the pool used to weave classes defined by the class loader. Classes referenced by woven classes are resolved from the pool
+   * of the JDK first, like a parent class loader, then from the class loader and from the agent.
+   */
+  private ClassPool classPool(ClassLoader loader) {
+    if (loader == null) {
+      return systemClassPool;
+    }
+    synchronized (classPools) {
+      ClassPool cp = classPools.get(loader);
+      if (cp == null) {
+        cp = new ClassPool(systemClassPool);
+        cp.appendClassPath(new LoaderClassPath(loader));
+        // probes are compiled against PerfAgentMonitor which is not always visible from the class loader
+        cp.appendClassPath(new ClassClassPath(PerfAgentMonitor.class));
+        classPools.put(loader, cp);
+      }
+      return cp;
+    }
+  }
+
+  /**
+   * Wrap tasks given to an executor with {@link PerfAgentMonitor#wrapTask(Runnable)} so that calls of the task are linked to the call
+   * submitting it.
+   */
+  private static class ExecutorTaskWrapper extends ExprEditor {
+    private final ClassPool cp;
+
+    ExecutorTaskWrapper(ClassPool cp) {
+      this.cp = cp;
+    }
+
+    @Override public void edit(MethodCall call) throws CannotCompileException {
+      String signature = call.getSignature();
+      if ((signature.startsWith("(Ljava/lang/Runnable;") || signature.startsWith("(Ljava/util/concurrent/Callable;"))
+          && ("execute".equals(call.getMethodName()) || "submit".equals(call.getMethodName()) || "schedule".equals(call.getMethodName()))) {
+        try {
+          if (cp.get(call.getClassName()).subtypeOf(cp.get("java.util.concurrent.Executor"))) {
+            call.replace("{ $1 = PerfAgentMonitor.wrapTask($1); $_ = $proceed($$); }");
+          }
+        } catch (NotFoundException e) {
+          // executor class is not visible, the call is not modified
+        }
+      }
+    }
+  }
+}
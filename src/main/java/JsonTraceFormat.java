@@ -0,0 +1,294 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Write each root call as a JSON object on one line. This is the format read by {@link PerfAgentGUI} and {@link WebGUI}. An entry
+ * aggregating several calls has the number of calls and the min and max times after its name, a call ending with an exception has the
+ * class of the exception, and a call with sub calls has its duration compensated for the cost of the probes of the sub calls, see
+ * {@link ProbeCalibration}.
+ * <p>
+ * Files start with a header line giving the clock and the cost of the probes. A new header line is written each time the cost is
+ * measured again, it applies to the next lines:
+ * <pre>
+ * {"@header":{"format":"json","timestamp":..,"clock":"NanoClock","probeCostInNanos":..}}
+ * </pre>
+ *
+ * @author olivier martin
+ */
+public class JsonTraceFormat extends TraceFormat {
+
+  /** Lines starting with this prefix do not contain a root call but information written by the agent, they are skipped by GUIs. */
+  public static final String META_LINE_PREFIX = "{\"@";
+
+  private static final String SIGNATURE = META_LINE_PREFIX + "header\":{\"format\":\"json\"";
+
+  private static ThreadLocal<Encoder> encoderTL = new ThreadLocal<Encoder>() {
+    @Override protected Encoder initialValue() {
+      return new Encoder();
+    }
+  };
+
+  @Override public byte[] encode(CallStack callStack) {
+    int size = callStack.size();
+    if (size == 0) {
+      return null;
+    }
+    Encoder encoder = encoderTL.get();
+    encoder.reset();
+    encoder.write('{');
+    for (int i = 0; i < size; i++) {
+      boolean isLastCall = i == size - 1;
+      int currentDeep = callStack.deep(i);
+      int nextElementDeep = !isLastCall ? callStack.deep(i + 1) : -1;
+      encoder.write('"');
+      writeMethodName(encoder, MethodRegistry.name(callStack.methodId(i)), callStack, i);
+      int count = callStack.count(i);
+      if (count > 1) {
+        encoder.write(" [");
+        encoder.writeLong(count);
+        encoder.write(" calls, min ");
+        encoder.writeMillis(callStack.minInNanos(i));
+        encoder.write("ms, max ");
+        encoder.writeMillis(callStack.maxInNanos(i));
+        encoder.write("ms]");
+      }
+      String thrown = callStack.thrown(i);
+      if (thrown != null) {
+        encoder.write(" [threw ");
+        encoder.writeEscaped(thrown, 0, thrown.length());
+        encoder.write(']');
+      }
+      if (callStack.nestedCalls(i) > 0 && ProbeCalibration.callCostInNanos() > 0) {
+        encoder.write(" [compensated ");
+        encoder.writeMillis(ProbeCalibration.compensatedDurationInNanos(callStack, i));
+        encoder.write("ms]");
+      }
+      encoder.write("\":\"");
+      encoder.writeMillis(callStack.durationInNanos(i));
+      encoder.write("ms\"");
+      if (isLastCall) {
+        for (int d = currentDeep; d > 1; d--) {
+          encoder.write("}]");
+        }
+      } else if (nextElementDeep == currentDeep + 1) {
+        encoder.write(",\"subcalls\":[{");
+      } else if (nextElementDeep == currentDeep) {
+        encoder.write("},{");
+      } else {
+        for (int d = nextElementDeep; d < currentDeep; d++) {
+          encoder.write("}]");
+        }
+        encoder.write("},{");
+      }
+    }
+    encoder.write("}\n");
+    return encoder.toBytes();
+  }
+
+  @Override public byte[] fileHeader() {
+    return header(PerfAgentMonitor.clock().getClass().getSimpleName(), ProbeCalibration.callCostInNanos());
+  }
+
+  @Override public byte[] headerUpdate() {
+    return fileHeader();
+  }
+
+  @Override public byte[] signature() {
+    return SIGNATURE.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @param clock the name of the clock read by the probes, null if unknown
+   */
+  static byte[] header(String clock, long probeCostInNanos) {
+    StringBuilder header = new StringBuilder(SIGNATURE).append(",\"timestamp\":")
+        .append(System.currentTimeMillis());
+    if (clock != null) {
+      header.append(",\"clock\":\"").append(clock).append('"');
+    }
+    header.append(",\"probeCostInNanos\":").append(probeCostInNanos).append("}}\n");
+    return header.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Write the name of the method with the values of its parameters instead of their types if they are tracked.
+   */
+  private static void writeMethodName(Encoder encoder, String methodName, CallStack callStack, int index) {
+    int paramCount = callStack.paramCount(index);
+    if (paramCount == 0) {
+      encoder.writeEscaped(methodName, 0, methodName.length());
+      return;
+    }
+    encoder.writeEscaped(methodName, 0, methodName.indexOf('(') + 1);
+    ParamValues params = callStack.params;
+    int paramsStart = callStack.paramsStart(index);
+    for (int p = 0; p < paramCount; p++) {
+      if (p != 0) {
+        encoder.write(',');
+      }
+      int param = paramsStart + p;
+      if (params.isInteger(param)) {
+        encoder.writeLong(params.longValue(param));
+      } else {
+        String text = params.text(param);
+        encoder.writeEscaped(text, 0, text.length());
+      }
+    }
+    encoder.write(')');
+  }
+
+  /**
+   * Growable buffer reused by a thread to encode its root calls directly in UTF-8. Text is escaped while it is encoded: quotes,
+   * backslashes and control characters are escaped as JSON requires, so a root call always stays on one line.
+   */
+  private static class Encoder {
+    private static final byte[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+    private byte[] bytes = new byte[4096];
+    private int    length;
+
+    void reset() {
+      length = 0;
+    }
+
+    void write(char c) {
+      ensureCapacity(1);
+      bytes[length++] = (byte) c;
+    }
+
+    /**
+     * @param ascii text without characters to escape nor characters outside of ASCII
+     */
+    void write(String ascii) {
+      int size = ascii.length();
+      ensureCapacity(size);
+      for (int i = 0; i < size; i++) {
+        bytes[length++] = (byte) ascii.charAt(i);
+      }
+    }
+
+    void writeEscaped(String text, int start, int end) {
+      // an escaped control character takes 6 bytes, any other character at most 3 bytes
+      ensureCapacity((end - start) * 6);
+      for (int i = start; i < end; i++) {
+        char c = text.charAt(i);
+        if (c < 0x80) {
+          if (c >= 0x20 && c != '"' && c != '\\') {
+            bytes[length++] = (byte) c;
+          } else {
+            writeEscapedAscii(c);
+          }
+        } else if (c < 0x800) {
+          bytes[length++] = (byte) (0xC0 | c >> 6);
+          bytes[length++] = (byte) (0x80 | c & 0x3F);
+        } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+          int codePoint = Character.toCodePoint(c, text.charAt(++i));
+          bytes[length++] = (byte) (0xF0 | codePoint >> 18);
+          bytes[length++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+          bytes[length++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+          bytes[length++] = (byte) (0x80 | codePoint & 0x3F);
+        } else if (Character.isSurrogate(c)) {
+          // replaced like String.getBytes() does for a surrogate without its pair
+          bytes[length++] = '?';
+        } else {
+          bytes[length++] = (byte) (0xE0 | c >> 12);
+          bytes[length++] = (byte) (0x80 | c >> 6 & 0x3F);
+          bytes[length++] = (byte) (0x80 | c & 0x3F);
+        }
+      }
+    }
+
+    private void writeEscapedAscii(char c) {
+      bytes[length++] = '\\';
+      switch (c) {
+        case '"':
+        case '\\':
+          bytes[length++] = (byte) c;
+          break;
+        case '\n':
+          bytes[length++] = 'n';
+          break;
+        case '\r':
+          bytes[length++] = 'r';
+          break;
+        case '\t':
+          bytes[length++] = 't';
+          break;
+        case '\b':
+          bytes[length++] = 'b';
+          break;
+        case '\f':
+          bytes[length++] = 'f';
+          break;
+        default:
+          bytes[length++] = 'u';
+          bytes[length++] = '0';
+          bytes[length++] = '0';
+          bytes[length++] = HEX_DIGITS[c >> 4];
+          bytes[length++] = HEX_DIGITS[c & 0xF];
+      }
+    }
+
+    void writeLong(long value) {
+      ensureCapacity(20);
+      if (value < 0) {
+        if (value == Long.MIN_VALUE) {
+          write(String.valueOf(value));
+          return;
+        }
+        bytes[length++] = '-';
+        value = -value;
+      }
+      int digits = 1;
+      for (long v = value / 10; v != 0; v /= 10) {
+        digits++;
+      }
+      writeDigits(value, digits);
+    }
+
+    /**
+     * Write a duration in milliseconds with all its digits, without the exponent of {@link Double#toString(double)} for small values.
+     */
+    void writeMillis(long nanos) {
+      if (nanos < 0) {
+        write('-');
+        nanos = -nanos;
+      }
+      writeLong(nanos / 1000000);
+      ensureCapacity(7);
+      bytes[length++] = '.';
+      long fraction = nanos % 1000000;
+      if (fraction == 0) {
+        bytes[length++] = '0';
+        return;
+      }
+      int digits = 6;
+      while (fraction % 10 == 0) {
+        fraction /= 10;
+        digits--;
+      }
+      writeDigits(fraction, digits);
+    }
+
+    /**
+     * Write the last digits of a positive value, with leading zeros if it has less digits.
+     */
+    private void writeDigits(long value, int digits) {
+      for (int i = length + digits - 1; i >= length; i--) {
+        bytes[i] = (byte) ('0' + value % 10);
+        value /= 10;
+      }
+      length += digits;
+    }
+
+    byte[] toBytes() {
+      return Arrays.copyOf(bytes, length);
+    }
+
+    private void ensureCapacity(int needed) {
+      if (length + needed > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + needed));
+      }
+    }
+  }
+}
@@ -0,0 +1,59 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registry of the methods weaved by the agent. Each method gets a compact id when its class is transformed and weaved code only
+ * passes this id to {@link PerfAgentMonitor}. Names are resolved when results are written.
+ *
+ * @author olivier martin
+ */
+public class MethodRegistry {
+
+  private static final Map<String, Integer> ids   = new HashMap<>();
+  private static volatile String[]          names = new String[1024];
+  private static volatile int               size  = 0;
+
+  /**
+   * Register a method.
+   *
+   * @param methodName the long name of the method
+   * @return the id of the method. The same id is returned if the method was already registered.
+   */
+  public static synchronized int register(String methodName) {
+    Integer id = ids.get(methodName);
+    if (id == null) {
+      id = size;
+      if (id == names.length) {
+        names = Arrays.copyOf(names, names.length * 2);
+      }
+      names[id] = methodName;
+      ids.put(methodName, id);
+      size = id + 1;
+    }
+    return id;
+  }
+
+  /**
+   * Forget all methods. Only used by tools reading results of several JVMs, whose ids are unrelated.
+   */
+  static synchronized void clear() {
+    ids.clear();
+    names = new String[1024];
+    size = 0;
+  }
+
+  /**
+   * @return the long name of the method registered with the given id
+   */
+  public static String name(int methodId) {
+    return names[methodId];
+  }
+
+  /**
+   * @return the number of methods registered. Ids are in the range [0, size[.
+   */
+  public static int size() {
+    return size;
+  }
+}
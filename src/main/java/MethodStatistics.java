@@ -0,0 +1,82 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count, total and maximum duration and a latency histogram for calls of a method (or of a method from a given caller). Count, total
+ * and maximum are striped by thread to limit contention between threads calling the same method. The histogram has one bucket per
+ * power of 2 microseconds.
+ *
+ * @author olivier martin
+ */
+public class MethodStatistics {
+
+  public static final int NB_BUCKETS = 40;
+
+  private static final int STRIPES = stripes();
+  private static final int COUNT   = 0;
+  private static final int TOTAL   = 1;
+  private static final int MAX     = 2;
+  private static final int FIELDS  = 3;
+
+  private final AtomicLongArray cells   = new AtomicLongArray(STRIPES * FIELDS);
+  private final AtomicLongArray buckets = new AtomicLongArray(NB_BUCKETS);
+
+  public void record(long durationInMicros) {
+    int stripe = ((int) Thread.currentThread().getId() & (STRIPES - 1)) * FIELDS;
+    cells.incrementAndGet(stripe + COUNT);
+    cells.addAndGet(stripe + TOTAL, durationInMicros);
+    long max;
+    while (durationInMicros > (max = cells.get(stripe + MAX))) {
+      if (cells.compareAndSet(stripe + MAX, max, durationInMicros)) {
+        break;
+      }
+    }
+    buckets.incrementAndGet(bucket(durationInMicros));
+  }
+
+  public long count() {
+    return sum(COUNT);
+  }
+
+  public long totalInMicros() {
+    return sum(TOTAL);
+  }
+
+  public long maxInMicros() {
+    long max = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      max = Math.max(max, cells.get(i * FIELDS + MAX));
+    }
+    return max;
+  }
+
+  /**
+   * @return the number of calls in the bucket. Bucket 0 is for calls below 1 microsecond and bucket <code>b</code> for calls taking
+   * from 2^(b-1) to 2^b - 1 microseconds.
+   */
+  public long bucketCount(int bucket) {
+    return buckets.get(bucket);
+  }
+
+  /**
+   * @return the exclusive upper bound in microseconds of a bucket
+   */
+  public static long bucketUpperBound(int bucket) {
+    return 1L << bucket;
+  }
+
+  private static int bucket(long durationInMicros) {
+    return Math.min(NB_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(durationInMicros));
+  }
+
+  private long sum(int field) {
+    long sum = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      sum += cells.get(i * FIELDS + field);
+    }
+    return sum;
+  }
+
+  private static int stripes() {
+    return Math.min(8, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) * 2);
+  }
+}
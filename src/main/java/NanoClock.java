@@ -0,0 +1,11 @@
+/**
+ * Precise clock reading {@link System#nanoTime()} on each call. This is the default clock.
+ *
+ * @author olivier martin
+ */
+public class NanoClock extends Clock {
+
+  @Override public long nanoTime() {
+    return System.nanoTime();
+  }
+}
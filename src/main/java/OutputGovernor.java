@@ -0,0 +1,298 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limit the bytes of results written to an output: a budget of bytes kept on disk, a maximum number of bytes per second and a minimum
+ * free space on the disk of the output. Limits are checked on each result written, so a burst of results can not fill the disk before
+ * the agent reacts. When a result does not fit in the limits, the policy applies:
+ * <ul>
+ * <li>{@link #DROP_NEW}: the result is dropped</li>
+ * <li>{@link #EVICT_OLDEST}: the oldest completed parts of the output, segments of a {@link SegmentedTraceOutput}, are deleted until
+ * the result fits in the budget, it is dropped if nothing can be deleted or if the rate is exceeded</li>
+ * <li>{@link #AGGREGATE}: the result is dropped and, until the result of the next flush fits in the limits, root calls are added to
+ * the aggregated statistics of {@link CallStatistics} instead of being written</li>
+ * </ul>
+ * The rate is a bucket filled with the maximum number of bytes per second, up to one second of bytes, a result is written if the bucket
+ * is not empty. Meta lines of JSON results (header updates, aggregated statistics) are small, periodic and needed to read the other
+ * results, so they are always written and only counted. Bytes are counted from the start of the JVM, bytes of previous runs are not
+ * part of the budget: evicting a segment left by a previous run frees space on the disk, not in the budget. Output is shed while the
+ * free space is low and written again once it is back.
+ * <p>
+ * Methods are called by the writer thread, except {@link #isShedding()}, {@link #isDegraded()}, {@link #skipped()} and
+ * {@link #aggregated()} called when root calls end.
+ *
+ * @author olivier martin
+ */
+public class OutputGovernor extends TraceOutput {
+
+  public static final int DROP_NEW     = 0;
+  public static final int EVICT_OLDEST = 1;
+  public static final int AGGREGATE    = 2;
+
+  private static final long FREE_SPACE_CHECK_INTERVAL_IN_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final TraceOutput output;
+  private final long        budgetInBytes;
+  private final long        maxBytesPerSecond;
+  private final long        minFreeSpaceInBytes;
+  private final File        directory;
+  private final int         policy;
+  private final byte[]      metaLinePrefix;
+  private final AtomicLong  shedRoots       = new AtomicLong();
+  private final AtomicLong  aggregatedRoots = new AtomicLong();
+  private       long        usedBytes;
+  private       long        rateBytes;
+  private       long        lastRefillTime  = System.nanoTime();
+  private       long        lastFreeSpaceCheckTime;
+  private       boolean     lowFreeSpace;
+  /** a result did not fit in the budget, the budget only gets room again when parts of the output are evicted */
+  private       boolean     budgetExhausted;
+  private       long        evictedBytes;
+  private       long        shedRootsReported;
+  private       long        aggregatedRootsReported;
+  private volatile long     shedBytes;
+  private volatile long     evictedParts;
+  private volatile boolean  shedding;
+
+  /**
+   * @param output              the output results are written to
+   * @param budgetInBytes       the maximum number of bytes written and not evicted, 0 for no budget
+   * @param maxBytesPerSecond   the maximum number of bytes written per second, 0 for no rate limit
+   * @param minFreeSpaceInBytes the minimum usable space on the disk of the directory, 0 to not check it
+   * @param directory           the directory of the output
+   * @param policy              {@link #DROP_NEW}, {@link #EVICT_OLDEST} or {@link #AGGREGATE}
+   * @param metaLinePrefix      the prefix of meta lines always written, null if the format has none
+   */
+  public OutputGovernor(TraceOutput output, long budgetInBytes, long maxBytesPerSecond, long minFreeSpaceInBytes, File directory,
+      int policy, byte[] metaLinePrefix) {
+    this.output = output;
+    this.budgetInBytes = budgetInBytes;
+    this.maxBytesPerSecond = maxBytesPerSecond;
+    this.minFreeSpaceInBytes = minFreeSpaceInBytes;
+    this.directory = directory;
+    this.policy = policy;
+    this.metaLinePrefix = metaLinePrefix;
+    rateBytes = maxBytesPerSecond;
+  }
+
+  /**
+   * @return the policy named <code>dropNew</code>, <code>evictOldest</code> or <code>aggregate</code>, -1 for an unknown name
+   */
+  public static int policy(String name) {
+    if ("dropNew".equalsIgnoreCase(name)) {
+      return DROP_NEW;
+    } else if ("evictOldest".equalsIgnoreCase(name)) {
+      return EVICT_OLDEST;
+    } else if ("aggregate".equalsIgnoreCase(name)) {
+      return AGGREGATE;
+    }
+    return -1;
+  }
+
+  @Override public void open() throws IOException {
+    output.open();
+    checkFreeSpace(System.nanoTime());
+  }
+
+  @Override public void dictionary(byte[] lines) throws IOException {
+    // results can not be read without the dictionary
+    output.dictionary(lines);
+  }
+
+  @Override public void write(byte[] content) throws IOException {
+    if (isMetaLine(content)) {
+      output.write(content);
+      usedBytes += content.length;
+      return;
+    }
+    long now = System.nanoTime();
+    refill(now);
+    checkFreeSpace(now);
+    if (maxBytesPerSecond > 0 && rateBytes <= 0) {
+      shed(content);
+      return;
+    }
+    if ((isOverBudget(content.length) || lowFreeSpace) && policy == EVICT_OLDEST) {
+      evict(content.length);
+    }
+    // low free space is checked again each second, unlike the budget which only gets room when parts of the output are evicted
+    if (lowFreeSpace) {
+      shed(content);
+      return;
+    }
+    if (isOverBudget(content.length)) {
+      budgetExhausted = true;
+      shed(content);
+      return;
+    }
+    output.write(content);
+    usedBytes += content.length;
+    rateBytes -= content.length;
+  }
+
+  /**
+   * Decide if root calls ending until the next flush are written, and report the counters.
+   */
+  @Override public void flush() throws IOException {
+    output.flush();
+    long now = System.nanoTime();
+    refill(now);
+    checkFreeSpace(now);
+    boolean shed = budgetExhausted || lowFreeSpace && policy != EVICT_OLDEST || maxBytesPerSecond > 0 && rateBytes <= 0;
+    if (shed != shedding) {
+      shedding = shed;
+      System.setProperty("JavaPerfAgent.governor.shedding", String.valueOf(shed));
+    }
+    long shedRootsCount = shedRoots.get();
+    if (shedRootsCount != shedRootsReported) {
+      shedRootsReported = shedRootsCount;
+      System.setProperty("JavaPerfAgent.governor.shedRoots", String.valueOf(shedRootsCount));
+      System.setProperty("JavaPerfAgent.governor.shedBytes", String.valueOf(shedBytes));
+    }
+    long aggregatedRootsCount = aggregatedRoots.get();
+    if (aggregatedRootsCount != aggregatedRootsReported) {
+      aggregatedRootsReported = aggregatedRootsCount;
+      System.setProperty("JavaPerfAgent.governor.aggregatedRoots", String.valueOf(aggregatedRootsCount));
+    }
+  }
+
+  @Override public void close() throws IOException {
+    output.close();
+  }
+
+  /**
+   * @return true if root calls ending now would not be written, they are not encoded
+   */
+  public boolean isShedding() {
+    return shedding;
+  }
+
+  /**
+   * @return true if root calls ending now are added to the aggregated statistics instead of being written
+   */
+  public boolean isDegraded() {
+    return shedding && policy == AGGREGATE;
+  }
+
+  /**
+   * Count a root call not encoded while shedding.
+   */
+  public void skipped() {
+    shedRoots.incrementAndGet();
+  }
+
+  /**
+   * Count a root call added to the aggregated statistics while degraded.
+   */
+  public void aggregated() {
+    aggregatedRoots.incrementAndGet();
+  }
+
+  public int policy() {
+    return policy;
+  }
+
+  /**
+   * @return the number of root calls dropped or not encoded because of the limits
+   */
+  public long shedRoots() {
+    return shedRoots.get();
+  }
+
+  /**
+   * @return the number of bytes of root calls dropped because of the limits, root calls not encoded are not counted
+   */
+  public long shedBytes() {
+    return shedBytes;
+  }
+
+  /**
+   * @return the number of parts of the output deleted to keep the budget
+   */
+  public long evictedParts() {
+    return evictedParts;
+  }
+
+  /**
+   * @return the number of root calls added to the aggregated statistics while degraded
+   */
+  public long aggregatedRoots() {
+    return aggregatedRoots.get();
+  }
+
+  private boolean isOverBudget(int length) {
+    return budgetInBytes > 0 && usedBytes + length > budgetInBytes;
+  }
+
+  private void evict(int length) throws IOException {
+    long freed;
+    long previousRunsBytes = output.previousRunsBytes();
+    while ((isOverBudget(length) || lowFreeSpace) && (freed = output.evictOldest()) > 0) {
+      // parts left by previous runs free space on the disk, not in the budget of this run
+      long freedPreviousRunsBytes = previousRunsBytes - output.previousRunsBytes();
+      previousRunsBytes -= freedPreviousRunsBytes;
+      usedBytes = Math.max(0, usedBytes - (freed - freedPreviousRunsBytes));
+      budgetExhausted = false;
+      evictedParts++;
+      evictedBytes += freed;
+      if (lowFreeSpace) {
+        lastFreeSpaceCheckTime = 0;
+        checkFreeSpace(System.nanoTime());
+      }
+      System.setProperty("JavaPerfAgent.governor.evictedParts", String.valueOf(evictedParts));
+      System.setProperty("JavaPerfAgent.governor.evictedBytes", String.valueOf(evictedBytes));
+    }
+  }
+
+  private void shed(byte[] content) {
+    shedRoots.incrementAndGet();
+    shedBytes += content.length;
+  }
+
+  private void refill(long now) {
+    if (maxBytesPerSecond > 0) {
+      long elapsed = now - lastRefillTime;
+      long bytes = elapsed * maxBytesPerSecond / TimeUnit.SECONDS.toNanos(1);
+      if (bytes > 0) {
+        rateBytes = Math.min(maxBytesPerSecond, rateBytes + bytes);
+        lastRefillTime = now;
+      }
+    }
+  }
+
+  /**
+   * Reading the free space is a system call, it is done at most once per second.
+   */
+  private void checkFreeSpace(long now) {
+    if (minFreeSpaceInBytes <= 0 || lastFreeSpaceCheckTime != 0 && now - lastFreeSpaceCheckTime < FREE_SPACE_CHECK_INTERVAL_IN_NANOS) {
+      return;
+    }
+    lastFreeSpaceCheckTime = now;
+    long freeSpace = directory.getUsableSpace();
+    boolean low = freeSpace < minFreeSpaceInBytes;
+    if (low != lowFreeSpace) {
+      lowFreeSpace = low;
+      System.setProperty("JavaPerfAgent.output.enabled", String.valueOf(!low || policy == AGGREGATE));
+      if (low) {
+        System.setProperty("JavaPerfAgent.output.disabled.reason", "Free space < " + minFreeSpaceInBytes / 1000000 + "Mb. Actual free space: "
+            + freeSpace + " bytes");
+      } else {
+        System.clearProperty("JavaPerfAgent.output.disabled.reason");
+      }
+    }
+  }
+
+  private boolean isMetaLine(byte[] content) {
+    if (metaLinePrefix == null || content.length < metaLinePrefix.length) {
+      return false;
+    }
+    for (int i = 0; i < metaLinePrefix.length; i++) {
+      if (content[i] != metaLinePrefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,151 @@
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Convert the value of a tracked parameter to text when the call starts, see {@link ParamValues}. The text must not be longer than
+ * the given length, renderers must not keep references to values.
+ * <p>
+ * Renderers are chosen by the class of the value, its super classes and its interfaces, with the option
+ * <code>$paramRenderer=&lt;CLASS NAME&gt;:&lt;RENDERER&gt;</code>. '*' matches all classes. Without renderer, strings, numbers and
+ * enums are shown with their value, arrays, collections and maps with their size and other objects with their class and identity
+ * hash code, so <code>toString()</code> of application classes is only called when asked with the renderer <code>toString</code>.
+ *
+ * @author olivier martin
+ */
+public abstract class ParamRenderer {
+
+  private static final String ELLIPSIS = "...";
+
+  private static final ParamRenderer DEFAULT = new ParamRenderer() {
+    @Override public String render(Object value, int maxLength) {
+      if (value instanceof CharSequence) {
+        CharSequence text = (CharSequence) value;
+        // large texts are not copied
+        return cut(text.length() <= maxLength ? text.toString() : text.subSequence(0, maxLength + 1).toString(), maxLength);
+      } else if (value instanceof Number || value instanceof Boolean || value instanceof Character || value instanceof Enum
+          || value instanceof Class) {
+        return cut(value.toString(), maxLength);
+      } else if (value.getClass().isArray()) {
+        return cut(value.getClass().getComponentType().getSimpleName() + "[" + Array.getLength(value) + "]", maxLength);
+      } else if (value instanceof Collection) {
+        return cut(value.getClass().getSimpleName() + "[size=" + ((Collection<?>) value).size() + "]", maxLength);
+      } else if (value instanceof Map) {
+        return cut(value.getClass().getSimpleName() + "[size=" + ((Map<?, ?>) value).size() + "]", maxLength);
+      }
+      return cut(value.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(value)), maxLength);
+    }
+  };
+
+  private static final ParamRenderer TO_STRING = new ParamRenderer() {
+    @Override public String render(Object value, int maxLength) {
+      return cut(value.toString(), maxLength);
+    }
+  };
+
+  private static final ParamRenderer TYPE = new ParamRenderer() {
+    @Override public String render(Object value, int maxLength) {
+      return cut(value.getClass().getName(), maxLength);
+    }
+  };
+
+  private static final ParamRenderer HIDDEN = new ParamRenderer() {
+    @Override public String render(Object value, int maxLength) {
+      return cut("***", maxLength);
+    }
+  };
+
+  /** renderers configured by class name */
+  private static final Map<String, ParamRenderer> renderers = new ConcurrentHashMap<>();
+  /** renderers found for each class, reset when renderers are configured */
+  private static volatile ClassValue<ParamRenderer> renderersByClass = newRenderersByClass();
+
+  /**
+   * @param value     a value which is not null
+   * @param maxLength the maximum length of the text
+   */
+  public abstract String render(Object value, int maxLength);
+
+  /**
+   * @return the text of the value with the renderer configured for its class. Exceptions thrown by the renderer are shown instead
+   * of the value.
+   */
+  static String renderValue(Object value, int maxLength) {
+    if (value == null) {
+      return cut("null", maxLength);
+    }
+    try {
+      return renderersByClass.get(value.getClass()).render(value, maxLength);
+    } catch (RuntimeException e) {
+      return cut("<" + e.getClass().getName() + ">", maxLength);
+    }
+  }
+
+  /**
+   * @return the text cut to the given length, ending with "..." if it is cut
+   */
+  public static String cut(String text, int maxLength) {
+    if (text.length() <= maxLength) {
+      return text;
+    }
+    return maxLength > ELLIPSIS.length() ? text.substring(0, maxLength - ELLIPSIS.length()) + ELLIPSIS : text.substring(0, maxLength);
+  }
+
+  /**
+   * Configure the renderer of a class.
+   *
+   * @param renderer toString, type, hidden, default or the name of a class extending {@link ParamRenderer} with a public constructor
+   *                 without parameters
+   */
+  public static void register(String className, String renderer) throws ReflectiveOperationException {
+    switch (renderer) {
+      case "toString":
+        renderers.put(className, TO_STRING);
+        break;
+      case "type":
+        renderers.put(className, TYPE);
+        break;
+      case "hidden":
+        renderers.put(className, HIDDEN);
+        break;
+      case "default":
+        renderers.put(className, DEFAULT);
+        break;
+      default:
+        renderers.put(className, (ParamRenderer) Class.forName(renderer).newInstance());
+    }
+    renderersByClass = newRenderersByClass();
+  }
+
+  private static ClassValue<ParamRenderer> newRenderersByClass() {
+    return new ClassValue<ParamRenderer>() {
+      @Override protected ParamRenderer computeValue(Class<?> type) {
+        ParamRenderer renderer = find(type);
+        if (renderer == null) {
+          renderer = renderers.get("*");
+        }
+        return renderer != null ? renderer : DEFAULT;
+      }
+    };
+  }
+
+  /**
+   * @return the renderer configured for the class, its super classes or its interfaces, null if there is none
+   */
+  private static ParamRenderer find(Class<?> type) {
+    for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+      ParamRenderer renderer = renderers.get(c.getName());
+      if (renderer != null) {
+        return renderer;
+      }
+      for (Class<?> i : c.getInterfaces()) {
+        renderer = find(i);
+        if (renderer != null) {
+          return renderer;
+        }
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,172 @@
+import java.util.Arrays;
+
+/**
+ * Values of the tracked parameters of the calls of a {@link CallStack}. Values are stored one after the other in the order the calls
+ * started, so removing the last calls of the stack removes the last values.
+ * <p>
+ * Primitive values are stored without boxing and converted to text only when the root call is written. Other values are converted to
+ * text by a {@link ParamRenderer} when the call starts, so that the arguments of a call are not retained until the root call ends.
+ * Texts are limited to {@link #maxLength()} characters per value and {@link #maxLengthPerRoot()} characters per root call, values
+ * beyond the limit of the root call are replaced by {@link #DROPPED}.
+ *
+ * @author olivier martin
+ */
+public class ParamValues {
+
+  public static final int DEFAULT_MAX_LENGTH          = 100;
+  public static final int DEFAULT_MAX_LENGTH_PER_ROOT = 10000;
+
+  /** text of a value which is not rendered because the limit of the root call is reached */
+  static final String DROPPED = "...";
+
+  private static final byte BOOLEAN = 0;
+  private static final byte CHAR    = 1;
+  private static final byte INT     = 2;
+  private static final byte LONG    = 3;
+  private static final byte FLOAT   = 4;
+  private static final byte DOUBLE  = 5;
+  private static final byte TEXT    = 6;
+
+  private static int maxLength        = DEFAULT_MAX_LENGTH;
+  private static int maxLengthPerRoot = DEFAULT_MAX_LENGTH_PER_ROOT;
+
+  private byte[]   types = new byte[16];
+  private long[]   bits  = new long[16];
+  private String[] texts = new String[16];
+  private int      size;
+  /** number of characters of the texts stored */
+  private int      length;
+
+  void add(boolean value) {
+    add(BOOLEAN, value ? 1 : 0);
+  }
+
+  void add(char value) {
+    add(CHAR, value);
+  }
+
+  void add(int value) {
+    add(INT, value);
+  }
+
+  void add(long value) {
+    add(LONG, value);
+  }
+
+  void add(float value) {
+    add(FLOAT, Float.floatToRawIntBits(value));
+  }
+
+  void add(double value) {
+    add(DOUBLE, Double.doubleToRawLongBits(value));
+  }
+
+  /**
+   * Add a value already converted to text, see {@link #remainingLength()}.
+   */
+  void add(String text) {
+    int index = add(TEXT, 0);
+    texts[index] = text;
+    length += text.length();
+  }
+
+  private int add(byte type, long value) {
+    if (size == types.length) {
+      int capacity = size * 2;
+      types = Arrays.copyOf(types, capacity);
+      bits = Arrays.copyOf(bits, capacity);
+      texts = Arrays.copyOf(texts, capacity);
+    }
+    int index = size++;
+    types[index] = type;
+    bits[index] = value;
+    return index;
+  }
+
+  /**
+   * @return the maximum length of the text of the next value, 0 or less if the limit of the root call is reached
+   */
+  int remainingLength() {
+    return Math.min(maxLength, maxLengthPerRoot - length);
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Remove the values starting from the given index.
+   */
+  void truncate(int size) {
+    for (int i = size; i < this.size; i++) {
+      if (texts[i] != null) {
+        length -= texts[i].length();
+        texts[i] = null;
+      }
+    }
+    this.size = Math.min(size, this.size);
+  }
+
+  /**
+   * @return true if the value at the given index is an int or a long, read with {@link #longValue(int)} without converting it to text
+   */
+  boolean isInteger(int index) {
+    return types[index] == INT || types[index] == LONG;
+  }
+
+  long longValue(int index) {
+    return bits[index];
+  }
+
+  /**
+   * @return the value at the given index converted to text
+   */
+  String text(int index) {
+    long value = bits[index];
+    switch (types[index]) {
+      case BOOLEAN:
+        return String.valueOf(value != 0);
+      case CHAR:
+        return String.valueOf((char) value);
+      case INT:
+        return String.valueOf((int) value);
+      case LONG:
+        return String.valueOf(value);
+      case FLOAT:
+        return String.valueOf(Float.intBitsToFloat((int) value));
+      case DOUBLE:
+        return String.valueOf(Double.longBitsToDouble(value));
+      default:
+        return texts[index];
+    }
+  }
+
+  /**
+   * @return true if the values starting at both indexes are the same
+   */
+  boolean equals(int index1, int index2, int count) {
+    for (int i = 0; i < count; i++) {
+      if (types[index1 + i] != types[index2 + i] || bits[index1 + i] != bits[index2 + i]
+          || types[index1 + i] == TEXT && !texts[index1 + i].equals(texts[index2 + i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public static int maxLength() {
+    return maxLength;
+  }
+
+  public static void maxLength(int value) {
+    maxLength = value;
+  }
+
+  public static int maxLengthPerRoot() {
+    return maxLengthPerRoot;
+  }
+
+  public static void maxLengthPerRoot(int value) {
+    maxLengthPerRoot = value;
+  }
+}
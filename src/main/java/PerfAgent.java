@@ -1,26 +1,24 @@
-import static java.lang.String.format;
-
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
 import java.security.ProtectionDomain;
 import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang3.tuple.Pair;
 
-import javassist.ClassPool;
-import javassist.CtClass;
-import javassist.CtMethod;
-import javassist.NotFoundException;
-
 /**
  * An agent to track performances. See {@link #printUsage()} for documentation.
  *
@@ -30,22 +28,45 @@ public class PerfAgent implements ClassFileTransformer {
 
   public static final String DEFAULT_OUTPUTFILE_PATH = "/tmp/stats.json";
   private static boolean trackParameters = false;
+  private static boolean trackExecutorTasks = false;
+  private static boolean trackConstructors = false;
+  private static boolean trackStaticInitializers = false;
+  private static boolean bytecodeWeaver = false;
+  private static boolean coarseClock = false;
+  private static long coarseClockResolutionInMicros = CoarseClock.DEFAULT_RESOLUTION_IN_MICROS;
   private static boolean                                          debugConfigFile = false;
   private        Map<String, Pair<Map<String, Boolean>, Boolean>> trackedClass    = new HashMap<>();
   private        Map<String, Pair<Map<String, Boolean>, Boolean>> untrackedClass  = new HashMap<>();
   private        Set<String>                                      debugClasses    = new HashSet<>();
+  private volatile ClassMatcher                                   classMatcher;
+  /** agent started in this JVM and instrumentation used to retransform classes when rules change at runtime */
+  private static PerfAgent                                        instance;
+  private static Instrumentation                                  instrumentation;
+  private        Weaver                                           weaver;
+  /** classes woven and time spent in {@link #transform}, see {@link PerfAgentControl} */
+  private static final AtomicLong                                 classesWoven         = new AtomicLong();
+  private static final AtomicLong                                 transformFailures    = new AtomicLong();
+  private static final AtomicLong                                 transformTimeInNanos = new AtomicLong();
 
-  public PerfAgent(String... args) {
+  /**
+   * @throws IOException if the configuration file can not be read or the output can not be opened
+   */
+  public PerfAgent(String... args) throws IOException {
     config(args[0]);
+    PerfAgentMonitor.start();
   }
 
-  public void config(String configFilePath) {
+  public void config(String configFilePath) throws IOException {
     BufferedReader reader = null;
     try {
       if (new File(configFilePath).exists()) {
         reader = new BufferedReader(new FileReader(configFilePath));
       } else {
-        reader = new BufferedReader(new InputStreamReader(getClass().getResourceAsStream(configFilePath)));
+        InputStream resource = getClass().getResourceAsStream(configFilePath);
+        if (resource == null) {
+          throw new FileNotFoundException(configFilePath);
+        }
+        reader = new BufferedReader(new InputStreamReader(resource));
       }
       String line;
       do {
@@ -54,17 +75,18 @@ public class PerfAgent implements ClassFileTransformer {
           processConfig(line);
         }
       } while (line != null);
-    } catch (IOException e) {
-      e.printStackTrace();
-      System.exit(8);
+      classMatcher = new ClassMatcher(trackedClass, untrackedClass);
+      if (bytecodeWeaver && trackExecutorTasks) {
+        System.err.println("Executor tasks are only tracked by the javassist weaver");
+      }
+      // the startup profile measures static initializers of tracked classes
+      boolean staticInitializers = trackStaticInitializers || StartupProfile.durationInSeconds() > 0;
+      weaver = bytecodeWeaver && !trackExecutorTasks ? new BytecodeWeaver(trackParameters, trackConstructors, staticInitializers)
+          : new JavassistWeaver(trackParameters, trackExecutorTasks, trackConstructors, staticInitializers);
+      PerfAgentMonitor.clock(coarseClock ? new CoarseClock(coarseClockResolutionInMicros) : new NanoClock());
     } finally {
       if (reader != null) {
-        try {
-          reader.close();
-        } catch (IOException e) {
-          e.printStackTrace();
-          System.exit(8);
-        }
+        reader.close();
       }
     }
   }
@@ -110,11 +132,11 @@ public class PerfAgent implements ClassFileTransformer {
             System.err.println("Failed to delete file " + filePath);
           }
         }
-        PerfAgentMonitor.outputFilePath(filePath);
+        PerfAgentMonitor.outputFilePath(filePath, appendFile);
       }
     }
     if (PerfAgentMonitor.outputFilePath() == null) {
-      PerfAgentMonitor.outputFilePath(DEFAULT_OUTPUTFILE_PATH);
+      PerfAgentMonitor.outputFilePath(DEFAULT_OUTPUTFILE_PATH, false);
     }
   }
 
@@ -133,9 +155,142 @@ public class PerfAgent implements ClassFileTransformer {
       case "trackParameters":
         trackParameters = split.length==1 || "true".equalsIgnoreCase(split[1]);
         break;
+      case "maxParamLength":
+        ParamValues.maxLength(Integer.parseInt(split[1]));
+        break;
+      case "maxParamLengthPerRoot":
+        ParamValues.maxLengthPerRoot(Integer.parseInt(split[1]));
+        break;
+      case "paramRenderer":
+        int separator = split[1].lastIndexOf(':');
+        try {
+          ParamRenderer.register(split[1].substring(0, separator), split[1].substring(separator + 1));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+          System.err.println("Invalid parameter renderer " + split[1] + ": " + e);
+        }
+        break;
+      case "arrayCallStack":
+        PerfAgentMonitor.arrayCallStack(split.length==1 || "true".equalsIgnoreCase(split[1]));
+        break;
+      case "writerQueueSize":
+        PerfAgentMonitor.writerQueueSize(Integer.parseInt(split[1]));
+        break;
+      case "writerFlushIntervalInMillis":
+        PerfAgentMonitor.writerFlushIntervalInMillis(Long.parseLong(split[1]));
+        break;
+      case "outputFormat":
+        if ("binary".equalsIgnoreCase(split[1])) {
+          PerfAgentMonitor.traceFormat(new BinaryTraceFormat());
+        } else if ("json".equalsIgnoreCase(split[1])) {
+          PerfAgentMonitor.traceFormat(new JsonTraceFormat());
+        } else {
+          System.err.println("Unknown output format " + split[1]);
+        }
+        break;
+      case "weaver":
+        if ("bytecode".equalsIgnoreCase(split[1])) {
+          bytecodeWeaver = true;
+        } else if ("javassist".equalsIgnoreCase(split[1])) {
+          bytecodeWeaver = false;
+        } else {
+          System.err.println("Unknown weaver " + split[1]);
+        }
+        break;
+      case "clock":
+        if ("coarse".equalsIgnoreCase(split[1])) {
+          coarseClock = true;
+        } else if ("nano".equalsIgnoreCase(split[1])) {
+          coarseClock = false;
+        } else {
+          System.err.println("Unknown clock " + split[1]);
+        }
+        break;
+      case "coarseClockResolutionInMicros":
+        coarseClockResolutionInMicros = Long.parseLong(split[1]);
+        break;
+      case "probeCalibrationIntervalInSeconds":
+        ProbeCalibration.intervalInSeconds(Long.parseLong(split[1]));
+        break;
+      case "sampleEveryNthRoot":
+        RootSampler.sampleEveryNthRoot(Integer.parseInt(split[1]));
+        break;
+      case "sampleRootProbability":
+        RootSampler.sampleRootProbability(Double.parseDouble(split[1]));
+        break;
+      case "maxProbeOverheadPercent":
+        RootSampler.maxProbeOverheadPercent(Double.parseDouble(split[1]));
+        break;
+      case "aggregateCalls":
+        PerfAgentMonitor.aggregateCalls(split.length==1 || "true".equalsIgnoreCase(split[1]));
+        break;
+      case "aggregateDumpIntervalInSeconds":
+        PerfAgentMonitor.aggregateDumpIntervalInSeconds(Long.parseLong(split[1]));
+        break;
+      case "segmentSizeInMegabytes":
+        PerfAgentMonitor.segmentSizeInMegabytes(Long.parseLong(split[1]));
+        break;
+      case "segmentDurationInMinutes":
+        PerfAgentMonitor.segmentDurationInMinutes(Long.parseLong(split[1]));
+        break;
+      case "maxSegments":
+        PerfAgentMonitor.maxSegments(Integer.parseInt(split[1]));
+        break;
+      case "compressOutput":
+        PerfAgentMonitor.compressOutput(split.length==1 || "true".equalsIgnoreCase(split[1]));
+        break;
+      case "compressionBlockSizeInKilobytes":
+        PerfAgentMonitor.compressionBlockSizeInKilobytes(Integer.parseInt(split[1]));
+        break;
+      case "maxCallsPerRoot":
+        PerfAgentMonitor.maxCallsPerRoot(Integer.parseInt(split[1]));
+        break;
+      case "maxDeep":
+        PerfAgentMonitor.maxDeep(Integer.parseInt(split[1]));
+        break;
+      case "collapseSiblingCalls":
+        PerfAgentMonitor.collapseSiblingCalls(split.length==1 || "true".equalsIgnoreCase(split[1]));
+        break;
+      case "trackConstructors":
+        trackConstructors = split.length==1 || "true".equalsIgnoreCase(split[1]);
+        break;
+      case "trackStaticInitializers":
+        trackStaticInitializers = split.length==1 || "true".equalsIgnoreCase(split[1]);
+        break;
+      case "startupProfileDurationInSeconds":
+        StartupProfile.durationInSeconds(Long.parseLong(split[1]));
+        break;
+      case "trackExecutorTasks":
+        trackExecutorTasks = split.length==1 || "true".equalsIgnoreCase(split[1]);
+        break;
+      case "jmx":
+        PerfAgentMonitor.jmx(split.length==1 || "true".equalsIgnoreCase(split[1]));
+        break;
+      case "aggregatorAddress":
+        PerfAgentMonitor.aggregatorAddress(split[1]);
+        break;
+      case "aggregatorSourceName":
+        PerfAgentMonitor.aggregatorSourceName(split[1]);
+        break;
+      case "aggregatorBufferSizeInKilobytes":
+        PerfAgentMonitor.aggregatorBufferSizeInKilobytes(Long.parseLong(split[1]));
+        break;
       case "stopLoggingResultsOnLowDiskSpace":
         PerfAgentMonitor.stopLoggingResultsOnLowDiskSpace(Long.parseLong(split[1]));
         break;
+      case "outputBudgetInMegabytes":
+        PerfAgentMonitor.outputBudgetInMegabytes(Long.parseLong(split[1]));
+        break;
+      case "outputMaxKilobytesPerSecond":
+        PerfAgentMonitor.outputMaxKilobytesPerSecond(Long.parseLong(split[1]));
+        break;
+      case "outputBudgetPolicy":
+        int policy = OutputGovernor.policy(split[1]);
+        if (policy >= 0) {
+          PerfAgentMonitor.outputBudgetPolicy(policy);
+        } else {
+          System.err.println("Unknown output budget policy " + split[1]);
+        }
+        break;
       }
   }
 
@@ -143,6 +298,24 @@ public class PerfAgent implements ClassFileTransformer {
     this.debugClasses.add(clazz);
   }
 
+  private void removeConfig(String value, Map<String, Pair<Map<String,Boolean>, Boolean>> set) {
+    int i = value.indexOf("(");
+    if(i >= 0) {
+      int endClassIndex = value.substring(0, i).lastIndexOf('.');
+      String className = value.substring(0, endClassIndex);
+      String methodName = value.substring(endClassIndex+1);
+      Pair<Map<String,Boolean>, Boolean> methodList = set.get(className);
+      if (methodList != null) {
+        // an entry without methods means the whole class, it is only removed once its last method is
+        if (methodList.getLeft().remove(methodName) != null && methodList.getLeft().isEmpty()) {
+          set.remove(className);
+        }
+      }
+    } else {
+      set.remove(value);
+    }
+  }
+
   private void addConfig(String value, Map<String, Pair<Map<String,Boolean>, Boolean>> set, boolean trackParameter) {
     int i = value.indexOf("(");
     if(i >= 0) {
@@ -164,158 +337,180 @@ public class PerfAgent implements ClassFileTransformer {
     }
   }
 
-  public Pair<String,String> findTrackedClassEntry(String className) {
-    String entry = findEntry(className, trackedClass);
-    if(entry!=null) {
-      String untrackedEntry = findEntry(className, untrackedClass);
-      if (untrackedEntry!=null) {
-        if(untrackedClass.get(untrackedEntry) != null && untrackedClass.get(untrackedEntry).getLeft().size()>0) {
-          return Pair.of(entry, untrackedEntry);
-        } else {
-          return null;
+  @Override public byte[] transform(ClassLoader loader, String classNameWithSlashes, Class<?> classBeingRedefined, ProtectionDomain protectionDomain,
+      byte[] classfileBuffer) throws IllegalClassFormatException {
+
+    boolean profiled = classBeingRedefined == null && classNameWithSlashes != null && StartupProfile.isActive();
+    if (profiled) {
+      StartupProfile.classLoaded(classNameWithSlashes.replace('/', '.'), loader);
+    }
+    ClassMatcher.Methods trackedMethods = classMatcher.match(classNameWithSlashes);
+    if (trackedMethods != null) {
+      long start = System.nanoTime();
+      String className = classNameWithSlashes.replace('/', '.');
+      try {
+        byte[] byteCode = weaver.weave(loader, className, classfileBuffer, trackedMethods, debugClasses.contains(className));
+        if (byteCode != null) {
+          classesWoven.incrementAndGet();
+        }
+        return byteCode;
+      } catch (Exception ex) {
+        transformFailures.incrementAndGet();
+        ex.printStackTrace();
+      } finally {
+        long durationInNanos = System.nanoTime() - start;
+        transformTimeInNanos.addAndGet(durationInNanos);
+        if (profiled) {
+          StartupProfile.classWoven(loader, className, durationInNanos);
         }
-      } else {
-        return Pair.of(entry, null);
       }
-    } else {
-      return null;
     }
+    return null;
   }
 
-  public boolean checkMethod(String methodName, String entryClassName, String entryClassNameInUntracked) {
-    return checkMethodEntry(methodName, trackedClass.get(entryClassName).getLeft())
-        && (entryClassNameInUntracked==null || !checkMethodEntry(methodName, untrackedClass.get(entryClassNameInUntracked).getLeft()));
+  static long classesWoven() {
+    return classesWoven.get();
   }
 
-  public boolean checkTrackParam(String methodName, String entryClassName) {
-    Pair<Map<String, Boolean>, Boolean> map = trackedClass.get(entryClassName);
-    boolean trackParam = map.getRight();
-    Map<String, Boolean> methods = map.getLeft();
-    Boolean aBoolean = methods.get(methodName);
-    if(aBoolean!=null){
-      trackParam = aBoolean;
-    } else {
-      String keyFound = null;
-      for (String entry : methods.keySet()) {
-        if (entry.lastIndexOf("*") >= 0) {
-          if (methodName.startsWith(entry.substring(0, entry.length() - 1))) {
-            keyFound = entry;
-          }
-        }
-      }
-      if (keyFound != null) {
-        Boolean val = methods.get(keyFound);
-        if (val != null)
-          return val;
-      }
-    }
-    return trackParam;
+  static long transformFailures() {
+    return transformFailures.get();
+  }
+
+  static long transformTimeInNanos() {
+    return transformTimeInNanos.get();
+  }
+
+  /**
+   * Add a rule at runtime. A rule is a line of the configuration file starting with '+', '-' or '#'. Classes already loaded and
+   * matching the rule are retransformed.
+   */
+  public static void addRule(String rule) {
+    changeRule(rule, true);
   }
 
-  private boolean checkMethodEntry(String methodName, Map<String,Boolean> set) {
-    if (set==null)
-      return false;
-    if(set.size()==0)
-      return true;
-    if(set.containsKey(methodName)) {
-      return true;
+  /**
+   * Remove a rule added at startup or at runtime. Classes already loaded and matching the rule are retransformed, classes which are
+   * not tracked anymore get back their original bytecode. Removing a method rule removes the class entry with its last method, removing
+   * a class rule also removes the method rules of the class.
+   */
+  public static void removeRule(String rule) {
+    changeRule(rule, false);
+  }
+
+  private static synchronized void changeRule(String rule, boolean add) {
+    if (instance == null) {
+      throw new IllegalStateException("JavaPerfAgent is not started");
+    }
+    rule = rule.trim();
+    if (rule.isEmpty() || "+-#".indexOf(rule.charAt(0)) < 0) {
+      throw new IllegalArgumentException("A rule starts with '+', '-' or '#': " + rule);
+    }
+    ClassMatcher previousClassMatcher = instance.classMatcher;
+    if (add) {
+      instance.processConfig(rule);
     } else {
-      for(String entry : set.keySet()) {
-        if(entry.lastIndexOf("*")>=0) {
-          if(methodName.startsWith(entry.substring(0, entry.length()-1))) {
-            return true;
-          }
-        }
-      }
+      instance.removeConfig(rule.substring(1), rule.charAt(0) == '-' ? instance.untrackedClass : instance.trackedClass);
     }
-    return false;
+    instance.classMatcher = new ClassMatcher(instance.trackedClass, instance.untrackedClass);
+    retransform(previousClassMatcher, instance.classMatcher);
   }
 
-  private String findEntry(String className, Map<String, Pair<Map<String,Boolean>, Boolean>> set) {
-    if(set.containsKey(className)) {
-      return className;
-    } else {
-      String keyFound = null;
-      for(String key : set.keySet()) {
-        if (key.endsWith("*")) {
-          if (className.startsWith(key.substring(0, key.length()-2))) {
-            if(keyFound==null || keyFound.length() < key.length())
-              keyFound = key;
-          }
+  /**
+   * Retransform the classes loaded matching one of the matchers. The transformer always receives the original bytecode of a class, so
+   * a class which does not match anymore gets it back.
+   *
+   * @return the number of classes retransformed
+   */
+  private static int retransform(ClassMatcher previousClassMatcher, ClassMatcher classMatcher) {
+    if (!instrumentation.isRetransformClassesSupported()) {
+      System.err.println("JavaPerfAgent can not retransform classes, add 'Can-Retransform-Classes: true' to the manifest of the agent");
+      return 0;
+    }
+    List<Class<?>> classes = new ArrayList<>();
+    for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+      if (instrumentation.isModifiableClass(clazz)) {
+        String classNameWithSlashes = clazz.getName().replace('.', '/');
+        if ((previousClassMatcher != null && previousClassMatcher.match(classNameWithSlashes) != null)
+            || classMatcher.match(classNameWithSlashes) != null) {
+          classes.add(clazz);
         }
       }
-      return keyFound;
     }
+    int retransformed = 0;
+    // one class at a time so that a class which can not be retransformed does not prevent the others
+    for (Class<?> clazz : classes) {
+      try {
+        instrumentation.retransformClasses(clazz);
+        retransformed++;
+      } catch (Throwable e) {
+        System.err.println("JavaPerfAgent failed to retransform " + clazz.getName() + ": " + e);
+      }
+    }
+    System.setProperty("JavaPerfAgent.retransformedClasses", String.valueOf(retransformed));
+    return retransformed;
   }
 
-  @Override public byte[] transform(ClassLoader loader, String classNameWithSlashes, Class<?> classBeingRedefined, ProtectionDomain protectionDomain,
-      byte[] classfileBuffer) throws IllegalClassFormatException {
-
-    byte[] byteCode;
-    String className = classNameWithSlashes.replaceAll("[/]", ".");
-    Pair<String, String> trackedClassEntry = findTrackedClassEntry(className);
-    if (trackedClassEntry!=null && trackedClassEntry.getLeft()!=null) {
-      try {
-        ClassPool cp = ClassPool.getDefault();
-        CtClass cc = cp.get(className);
-        boolean debug = debugClasses.contains(className);
-        if (!cc.isFrozen()) {
-          boolean isModified = false;
-          Set<String> methodsModified = new HashSet<>();
-          for (CtMethod m : cc.getDeclaredMethods()) {
-            if(checkMethod(m.getName(), trackedClassEntry.getLeft(), trackedClassEntry.getRight())) {
-              if (!m.isEmpty() && m.getMethodInfo().getCodeAttribute()!=null) {
-                methodsModified.add(m.getLongName());
-                m.addLocalVariable("monitorsIndex", CtClass.intType);
-                if(checkTrackParam(m.getName(), trackedClassEntry.getLeft()) || trackParameters) {
-                  m.insertBefore("monitorsIndex = PerfAgentMonitor.beforeMethod(\"" + m.getLongName() + "\", " + debug + ", $args);");
-                } else {
-                  m.insertBefore("monitorsIndex = PerfAgentMonitor.beforeMethod(\"" + m.getLongName() + "\", " + debug + ", null);");
-                }
-                m.insertAfter("{PerfAgentMonitor.afterMethod(monitorsIndex, "+debug+");}");
-                isModified = true;
-              }
-            }
-          }
-          if(isModified) {
-            if(debug) {
-              System.out.println(format("Class %s was modified. Methods tracked: %s.", className, methodsModified.toString()));
-            }
-            byteCode = cc.toBytecode();
-            cc.detach();
-            return byteCode;
+  /**
+   * Entry point when the agent is loaded into a running JVM, see {@link PerfAgentAttach}. The first load starts the agent with the
+   * configuration file given in arguments and retransforms the classes already loaded which are tracked. Next loads apply commands
+   * separated by ';' to change rules: <code>add=&lt;rule&gt;</code> or <code>remove=&lt;rule&gt;</code>.
+   */
+  public static synchronized void agentmain(String agentArgs, Instrumentation inst) {
+    if (agentArgs == null || agentArgs.trim().length() == 0) {
+      System.err.println("You must specify the path to configuration file for the agent.");
+      return;
+    }
+    if (instance != null) {
+      for (String command : agentArgs.split(";")) {
+        String[] split = command.trim().split("=", 2);
+        try {
+          if ("add".equals(split[0]) && split.length == 2) {
+            addRule(split[1]);
+          } else if ("remove".equals(split[0]) && split.length == 2) {
+            removeRule(split[1]);
           } else {
-            if(debug) {
-              System.out.println(format("Class %s is not modified because no method was marked as tracked", className));
-            }
-          }
-        } else {
-          if(debug) {
-            System.out.println(format("Class %s is frozen. Cant modified it with agent code%n", className));
+            System.err.println("Unknown JavaPerfAgent command " + command);
           }
+        } catch (IllegalArgumentException e) {
+          System.err.println(e.getMessage());
         }
-      } catch (NotFoundException e) {
-        // nothing to do
-      } catch (Exception ex) {
-        ex.printStackTrace();
       }
+      return;
     }
-
-    return null;
+    // the JVM keeps running if the agent can not start
+    try {
+      start(agentArgs, inst);
+    } catch (IOException e) {
+      System.err.println("JavaPerfAgent can not start: " + e);
+      return;
+    }
+    retransform(null, instance.classMatcher);
   }
 
-  public static void premain(String agentArgs, Instrumentation inst) {
+  public static synchronized void premain(String agentArgs, Instrumentation inst) {
     if( agentArgs==null || agentArgs.trim().length()==0) {
       System.err.println("You must specify the path to configuration file for the agent.");
       System.exit(9);
     }
+    try {
+      start(agentArgs, inst);
+    } catch (IOException e) {
+      e.printStackTrace();
+      System.exit(8);
+    }
+  }
+
+  private static void start(String agentArgs, Instrumentation inst) throws IOException {
     String[] param = agentArgs.split(",");
     System.out.println("JavaPerfAgent is activated");
     System.out.println("JavaPerfAgent config file: " + param[0]);
-    System.setProperty("JavaPerfAgent.enabled", "true");
     System.setProperty("JavaPerfAgent.configfile", param[0]);
     PerfAgent perfAgent = new PerfAgent(param);
-    inst.addTransformer(perfAgent);
+    System.setProperty("JavaPerfAgent.enabled", "true");
+    // classes are retransformed when rules change at runtime
+    inst.addTransformer(perfAgent, true);
+    instance = perfAgent;
+    instrumentation = inst;
   }
 
   public static void main(String[] args) {
@@ -325,21 +520,126 @@ public class PerfAgent implements ClassFileTransformer {
   private static void printUsage() {
     System.out.println(
         "To plug the agent, add to JVM option -javaagent:<PATH_TO_JAR>=<PATH_TO_CONFIG_FILE>.\n"
+            + "To plug the agent into a running JVM, run java -cp <PATH_TO_JAR> PerfAgentAttach <PID> <PATH_TO_CONFIG_FILE>.\n"
+            + "Rules can then be changed without restarting the JVM, classes already loaded are retransformed:\n"
+            + "\tjava -cp <PATH_TO_JAR> PerfAgentAttach <PID> 'add=+com.test.Test*;remove=-com.test.Test.remove(int)'\n"
             + "Configuration file is a simple text file.\n"
             + "If line starts with '//' then this is a comment line\n"
             + "You should specify where to write results with a line starting with ':' followed by the path to the config file. Example:\n"
             + "\t:/tmp/stats.json\n"
+            + "Results are appended to the ones of a previous run if the path ends with '+', this is not supported by the binary format.\n"
+            + "Ids of the tracked methods are written next to this file in a dictionary with the '.methods' suffix.\n"
             + "You can add some options starting with the character '$'. Options available are:\n"
             + "\t$minRootTimeToTrackInMicros=<TIME IN MS>\n"
             + "\t  specifies the minimum time for the root call to match in order to log results from this method\n"
             + "\t$minTimeToTrackInMicros=<TIME IN MS>\n"
             + "\t  specifies the minimum time on a call to match in order to log results from this method\n"
+            + "\t$maxCallsPerRoot=<NUMBER OF CALLS>\n"
+            + "\t  specifies the maximum number of calls recorded for a root call. Next calls are folded into one entry per method under the\n"
+            + "\t  running call, named with the number of calls and the min and max times, for example 'com.test.Test.get() [120 calls, min 0.1ms, max 2.3ms]'\n"
+            + "\t$maxDeep=<DEEP>\n"
+            + "\t  specifies the maximum deep of calls recorded. Deeper calls are folded the same way under the call running at this deep\n"
+            + "\t$collapseSiblingCalls\n"
+            + "\t  merges consecutive calls of the same method with the same parameters and without sub calls into one entry named with the\n"
+            + "\t  number of calls and the min and max times\n"
             + "\t$trackParameters\n"
             + "\t  specifies that parameters should be tracked\n"
+            + "\t$maxParamLength=<NUMBER OF CHARACTERS>\n"
+            + "\t  specifies the maximum length of the text of a tracked parameter (default " + ParamValues.DEFAULT_MAX_LENGTH + ")\n"
+            + "\t$maxParamLengthPerRoot=<NUMBER OF CHARACTERS>\n"
+            + "\t  specifies the maximum length of the texts of the parameters of a root call. Next parameters are shown as '"
+            + ParamValues.DROPPED + "' (default " + ParamValues.DEFAULT_MAX_LENGTH_PER_ROOT + ")\n"
+            + "\t$paramRenderer=<CLASS NAME>:toString|type|hidden|default|<RENDERER CLASS NAME>\n"
+            + "\t  specifies how parameters of this class, its sub classes and implementations are converted to text when the call starts.\n"
+            + "\t  By default strings, numbers and enums show their value, arrays, collections and maps their size and other objects their\n"
+            + "\t  class and identity hash code. toString calls toString(), type shows the class, hidden shows '***', a renderer class\n"
+            + "\t  extends ParamRenderer. '*' matches all classes. Option can be repeated\n"
             + "\t$debugConfigFile\n"
             + "\t  debug configuration analysis\n"
+            + "\t$trackConstructors\n"
+            + "\t  also tracks constructors of tracked classes, named <init> like com.test.Test.<init>(int). Rules can name them too, for\n"
+            + "\t  example +com.test.Test.<init>(int)\n"
+            + "\t$trackStaticInitializers\n"
+            + "\t  also tracks static initializers of tracked classes, named like com.test.Test.<clinit>()\n"
+            + "\t$startupProfileDurationInSeconds=<TIME IN SECONDS>\n"
+            + "\t  records for each class loaded during this time after the start of the agent when it was loaded, the time spent weaving\n"
+            + "\t  it, the time spent in its static initializer if it is tracked and when its first tracked method was called. Static\n"
+            + "\t  initializers of tracked classes are tracked. The timeline is written at the end into a CSV file named after the output\n"
+            + "\t  file, for example /tmp/stats.json" + StartupProfile.FILE_SUFFIX + "\n"
+            + "\t$trackExecutorTasks\n"
+            + "\t  links calls of tasks submitted to an executor from a tracked method to the submitting call, see PerfAgent.submitTask(id)\n"
+            + "\t  and PerfAgent.runTask(id) in results. PerfAgent.taskQueueWait() is the time spent by the task waiting in the executor\n"
             + "\t$stopLoggingResultsOnLowDiskSpace=<SizeInMegabytes>\n"
-            + "\t  specifies the disk free space limit which will stop saving results on the FS\n"
+            + "\t  specifies the disk free space limit below which the output budget policy applies. Free space is checked at most once per\n"
+            + "\t  second when results are written\n"
+            + "\t$outputBudgetInMegabytes=<SIZE IN MB>\n"
+            + "\t  specifies how many bytes of results written by this JVM can be kept on disk before the output budget policy applies\n"
+            + "\t$outputMaxKilobytesPerSecond=<SIZE IN KB>\n"
+            + "\t  specifies how many bytes of results can be written per second, with bursts of one second. Root calls over the rate are dropped\n"
+            + "\t  or aggregated with the aggregate policy\n"
+            + "\t$outputBudgetPolicy=dropNew|evictOldest|aggregate\n"
+            + "\t  specifies what happens to root calls over the output budget: dropNew drops them, evictOldest deletes the oldest segments\n"
+            + "\t  to keep the budget (with $segmentSizeInMegabytes), aggregate adds them to statistics per method and per caller/callee\n"
+            + "\t  written like with $aggregateCalls until they fit again. Counters of what is shed are published in the system properties\n"
+            + "\t  JavaPerfAgent.governor.* (default dropNew)\n"
+            + "\t$writerQueueSize=<NUMBER OF RESULTS>\n"
+            + "\t  specifies how many results can wait to be written before new ones are dropped (default " + TraceWriter.DEFAULT_QUEUE_SIZE + ")\n"
+            + "\t$writerFlushIntervalInMillis=<TIME IN MS>\n"
+            + "\t  specifies how often waiting results are written to the output file (default " + TraceWriter.DEFAULT_FLUSH_INTERVAL_IN_MILLIS + "ms)\n"
+            + "\t$outputFormat=json|binary\n"
+            + "\t  specifies the format of results. The binary format is smaller and can be converted to JSON with TraceConverter (default json)\n"
+            + "\t$weaver=javassist|bytecode\n"
+            + "\t  specifies how probes are added to tracked methods. The bytecode weaver rewrites methods in one pass without compiling\n"
+            + "\t  source code, which is faster at startup, but does not track executor tasks (default javassist)\n"
+            + "\t$clock=nano|coarse\n"
+            + "\t  specifies the clock read by probes. The nano clock calls System.nanoTime() on each probe. The coarse clock is updated by a\n"
+            + "\t  background thread, it is cheaper to read but calls shorter than its resolution can be recorded with 0ms (default nano)\n"
+            + "\t$coarseClockResolutionInMicros=<TIME IN MICROSECONDS>\n"
+            + "\t  specifies how often the coarse clock is updated (default " + CoarseClock.DEFAULT_RESOLUTION_IN_MICROS + ")\n"
+            + "\t$probeCalibrationIntervalInSeconds=<TIME IN SECONDS>\n"
+            + "\t  specifies how often the cost of a probe is measured again. It is measured at startup, written in the header of the output\n"
+            + "\t  and subtracted from durations for each sub call. 0 measures it only at startup (default "
+            + ProbeCalibration.DEFAULT_INTERVAL_IN_SECONDS + "s)\n"
+            + "\t$sampleEveryNthRoot=<N>\n"
+            + "\t  records only one root call every N root calls of a thread. Calls of other root calls are not measured\n"
+            + "\t$sampleRootProbability=<PROBABILITY BETWEEN 0 AND 1>\n"
+            + "\t  records a root call with the given probability\n"
+            + "\t$maxProbeOverheadPercent=<PERCENT>\n"
+            + "\t  records root calls with a probability adapted every second to keep the time spent in the agent below this percentage of the CPU\n"
+            + "\t$aggregateCalls\n"
+            + "\t  does not write calls of each root call but statistics per method and per caller/callee with a latency histogram\n"
+            + "\t$aggregateDumpIntervalInSeconds=<TIME IN SECONDS>\n"
+            + "\t  with aggregated calls, specifies how often statistics are written to the output file (default 60s)\n"
+            + "\t$segmentSizeInMegabytes=<SIZE IN MB>\n"
+            + "\t  writes results into memory mapped segment files of this size named after the output file (/tmp/stats.000001.json, ...)\n"
+            + "\t$segmentDurationInMinutes=<TIME IN MINUTES>\n"
+            + "\t  with segments, specifies the time after which a new segment is started even if the current one is not full\n"
+            + "\t$maxSegments=<NUMBER OF SEGMENTS>\n"
+            + "\t  with segments, specifies how many segments are kept on disk. Oldest segments are deleted\n"
+            + "\t$compressOutput\n"
+            + "\t  writes results into the output file in blocks compressed independently, with an index of blocks in a file with the\n"
+            + "\t  '" + CompressedTraceOutput.INDEX_SUFFIX + "' suffix so the GUIs decompress only the blocks of the lines they show. Segment options do not apply\n"
+            + "\t$compressionBlockSizeInKilobytes=<SIZE IN KB>\n"
+            + "\t  with compression, specifies the size of the results compressed in a block (default "
+            + CompressedTraceOutput.DEFAULT_BLOCK_SIZE_IN_KILOBYTES + "). A block is written at the latest\n"
+            + "\t  " + CompressedTraceOutput.MAX_BLOCK_AGE_IN_SECONDS + "s after its first result\n"
+            + "\t$aggregatorAddress=[<HOST>:]<PORT>\n"
+            + "\t  sends results to a SocketAggregator started with java -cp <PATH_TO_JAR> SocketAggregator [<HOST>:]<PORT> <DIRECTORY>\n"
+            + "\t  instead of writing them. The aggregator stores results of each JVM in its own directory in segments of time, in a file\n"
+            + "\t  named like the output file with its dictionary, and finds root calls by method, duration and time with\n"
+            + "\t  java -cp <PATH_TO_JAR> TraceStore. Results are sent in batches every writer flush interval, and the agent connects\n"
+            + "\t  again when the connection is lost. Segment options do not apply\n"
+            + "\t$aggregatorSourceName=<NAME>\n"
+            + "\t  specifies the name of the directory of the JVM on the aggregator. Must be unique per JVM run (default <PID>@<HOST>)\n"
+            + "\t$aggregatorBufferSizeInKilobytes=<SIZE IN KB>\n"
+            + "\t  specifies how many bytes of results can wait to be sent to the aggregator, while it is not reachable or slow, before new\n"
+            + "\t  results are dropped (default " + SocketTraceOutput.DEFAULT_BUFFER_SIZE_IN_KILOBYTES + ")\n"
+            + "\t$arrayCallStack\n"
+            + "\t  records calls into per thread preallocated arrays instead of one object per call\n"
+            + "\t$jmx\n"
+            + "\t  registers the MBean " + PerfAgentControl.OBJECT_NAME + " showing what the agent does (classes woven, calls per second,\n"
+            + "\t  root calls recorded and dropped, writer queue, bytes written, time spent weaving) and allowing to change the minimum\n"
+            + "\t  times, to pause or resume the output and to add or remove rules at runtime\n"
             + "You should add some classes or methods to track with: \n"
             + "\t* A full class name (means package with class name) starting with '+'. for example:\n"
             + "\t\t+java.util.ArrayList\n"
@@ -0,0 +1,54 @@
+import java.io.File;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+/**
+ * Load the agent into a running JVM with the attach API. The first load starts the agent with a configuration file, next loads change
+ * the rules, see {@link PerfAgent#agentmain(String, java.lang.instrument.Instrumentation)}.
+ * <p>
+ * Usage: java -cp &lt;PATH_TO_JAR&gt; PerfAgentAttach &lt;PID&gt; &lt;PATH_TO_CONFIG_FILE&gt;|&lt;COMMANDS&gt;
+ * <p>
+ * The attach API is loaded by reflection because it is not part of the JRE before Java 9. With Java 8, it is loaded from the
+ * <code>lib/tools.jar</code> of the JDK running this class.
+ *
+ * @author olivier martin
+ */
+public class PerfAgentAttach {
+
+  public static void main(String[] args) throws Exception {
+    if (args.length != 2) {
+      System.err.println("Usage: java -cp <PATH_TO_JAR> PerfAgentAttach <PID> <PATH_TO_CONFIG_FILE>|<COMMANDS>");
+      System.exit(9);
+    }
+    String agentArgs = args[1];
+    if (new File(agentArgs).exists()) {
+      // the agent runs in another working directory
+      agentArgs = new File(agentArgs).getAbsolutePath();
+    }
+    String agentJar = new File(PerfAgentAttach.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getAbsolutePath();
+    Class<?> virtualMachineClass = loadVirtualMachineClass();
+    Object virtualMachine = virtualMachineClass.getMethod("attach", String.class).invoke(null, args[0]);
+    try {
+      Method loadAgent = virtualMachineClass.getMethod("loadAgent", String.class, String.class);
+      loadAgent.invoke(virtualMachine, agentJar, agentArgs);
+      System.out.println("JavaPerfAgent loaded into JVM " + args[0] + " with " + agentArgs);
+    } finally {
+      virtualMachineClass.getMethod("detach").invoke(virtualMachine);
+    }
+  }
+
+  private static Class<?> loadVirtualMachineClass() throws Exception {
+    String className = "com.sun.tools.attach.VirtualMachine";
+    try {
+      return Class.forName(className);
+    } catch (ClassNotFoundException e) {
+      File toolsJar = new File(System.getProperty("java.home"), "../lib/tools.jar");
+      if (!toolsJar.exists()) {
+        throw new IllegalStateException("The attach API is not available, run this class with a JDK");
+      }
+      URLClassLoader classLoader = new URLClassLoader(new URL[] {toolsJar.toURI().toURL()}, PerfAgentAttach.class.getClassLoader());
+      return Class.forName(className, true, classLoader);
+    }
+  }
+}
@@ -0,0 +1,162 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * MBean showing what the agent does and allowing to reduce its overhead at runtime. Registered in the platform MBean server when the
+ * <code>$jmx</code> option is set. Counters are updated once per root call or per class woven, not on each call, so they do not add
+ * any cost to the probes.
+ *
+ * @author olivier martin
+ */
+public class PerfAgentControl implements PerfAgentControlMBean {
+
+  public static final String OBJECT_NAME = "JavaPerfAgent:type=Control";
+
+  private static final long RATE_INTERVAL_IN_MILLIS = 1000;
+
+  private          long   lastProbeCalls;
+  private          long   lastRateTime = System.nanoTime();
+  private volatile double probeCallsPerSecond;
+
+  /**
+   * Register the MBean and start measuring the number of calls per second.
+   */
+  static void register(ScheduledExecutorService scheduler) {
+    final PerfAgentControl control = new PerfAgentControl();
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(control, new ObjectName(OBJECT_NAME));
+    } catch (JMException e) {
+      System.err.println("JavaPerfAgent MBean can not be registered");
+      e.printStackTrace();
+      return;
+    }
+    scheduler.scheduleAtFixedRate(new Runnable() {
+      @Override public void run() {
+        control.updateRates();
+      }
+    }, RATE_INTERVAL_IN_MILLIS, RATE_INTERVAL_IN_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  private void updateRates() {
+    long now = System.nanoTime();
+    long probeCalls = RootSampler.probes();
+    probeCallsPerSecond = (double) (probeCalls - lastProbeCalls) * TimeUnit.SECONDS.toNanos(1) / Math.max(1, now - lastRateTime);
+    lastProbeCalls = probeCalls;
+    lastRateTime = now;
+  }
+
+  @Override public long getClassesWoven() {
+    return PerfAgent.classesWoven();
+  }
+
+  @Override public long getMethodsWoven() {
+    return Weaver.methodsWoven();
+  }
+
+  @Override public long getTransformFailures() {
+    return PerfAgent.transformFailures();
+  }
+
+  @Override public long getTransformTimeInMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(PerfAgent.transformTimeInNanos());
+  }
+
+  @Override public long getProbeCalls() {
+    return RootSampler.probes();
+  }
+
+  @Override public double getProbeCallsPerSecond() {
+    return probeCallsPerSecond;
+  }
+
+  @Override public long getRootsRecorded() {
+    return PerfAgentMonitor.rootsRecorded();
+  }
+
+  @Override public long getRootsDropped() {
+    TraceWriter traceWriter = PerfAgentMonitor.traceWriter();
+    return traceWriter != null ? traceWriter.dropped() : 0;
+  }
+
+  @Override public long getRootsIgnored() {
+    return PerfAgentMonitor.rootsIgnored();
+  }
+
+  @Override public int getWriterQueueSize() {
+    TraceWriter traceWriter = PerfAgentMonitor.traceWriter();
+    return traceWriter != null ? traceWriter.queueSize() : 0;
+  }
+
+  @Override public long getBytesWritten() {
+    TraceWriter traceWriter = PerfAgentMonitor.traceWriter();
+    return traceWriter != null ? traceWriter.bytesWritten() : 0;
+  }
+
+  @Override public long getRootsShed() {
+    OutputGovernor outputGovernor = PerfAgentMonitor.outputGovernor();
+    return outputGovernor != null ? outputGovernor.shedRoots() : 0;
+  }
+
+  @Override public long getBytesShed() {
+    OutputGovernor outputGovernor = PerfAgentMonitor.outputGovernor();
+    return outputGovernor != null ? outputGovernor.shedBytes() : 0;
+  }
+
+  @Override public long getSegmentsEvicted() {
+    OutputGovernor outputGovernor = PerfAgentMonitor.outputGovernor();
+    return outputGovernor != null ? outputGovernor.evictedParts() : 0;
+  }
+
+  @Override public long getRootsAggregated() {
+    OutputGovernor outputGovernor = PerfAgentMonitor.outputGovernor();
+    return outputGovernor != null ? outputGovernor.aggregatedRoots() : 0;
+  }
+
+  @Override public long getRepairedStacks() {
+    return PerfAgentMonitor.repairedStacks();
+  }
+
+  @Override public long getProbeCostInNanos() {
+    return ProbeCalibration.callCostInNanos();
+  }
+
+  @Override public long getMinTimeToTrackInMicros() {
+    return PerfAgentMonitor.minTimeToTrackInMicros();
+  }
+
+  @Override public void setMinTimeToTrackInMicros(long value) {
+    PerfAgentMonitor.minTimeToTrackInMicros(value);
+  }
+
+  @Override public long getMinRootTimeToTrackInMicros() {
+    return PerfAgentMonitor.minRootTimeToTrackInMicros();
+  }
+
+  @Override public void setMinRootTimeToTrackInMicros(long value) {
+    PerfAgentMonitor.minRootTimeToTrackInMicros(value);
+  }
+
+  @Override public boolean isOutputEnabled() {
+    return PerfAgentMonitor.isOutputEnabled();
+  }
+
+  @Override public void pauseOutput() {
+    PerfAgentMonitor.outputPaused(true);
+  }
+
+  @Override public void resumeOutput() {
+    PerfAgentMonitor.outputPaused(false);
+  }
+
+  @Override public void addRule(String rule) {
+    PerfAgent.addRule(rule);
+  }
+
+  @Override public void removeRule(String rule) {
+    PerfAgent.removeRule(rule);
+  }
+}
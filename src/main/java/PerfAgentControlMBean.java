@@ -0,0 +1,122 @@
+/**
+ * Management interface of the agent, see {@link PerfAgentControl}.
+ *
+ * @author olivier martin
+ */
+public interface PerfAgentControlMBean {
+
+  /**
+   * @return the number of classes woven since the start, a class retransformed is counted again
+   */
+  long getClassesWoven();
+
+  /**
+   * @return the number of methods woven since the start, a method of a class retransformed is counted again
+   */
+  long getMethodsWoven();
+
+  /**
+   * @return the number of classes which could not be woven
+   */
+  long getTransformFailures();
+
+  /**
+   * @return the time spent to weave classes since the start
+   */
+  long getTransformTimeInMillis();
+
+  /**
+   * @return the number of calls recorded since the start. Calls of root calls which are not sampled are not counted.
+   */
+  long getProbeCalls();
+
+  /**
+   * @return the number of calls recorded per second, measured every second
+   */
+  double getProbeCallsPerSecond();
+
+  /**
+   * @return the number of root calls queued for writing
+   */
+  long getRootsRecorded();
+
+  /**
+   * @return the number of root calls dropped because the writer queue was full
+   */
+  long getRootsDropped();
+
+  /**
+   * @return the number of root calls not written because they are shorter than the minimum root time or the output is disabled
+   */
+  long getRootsIgnored();
+
+  /**
+   * @return the number of root calls waiting to be written
+   */
+  int getWriterQueueSize();
+
+  /**
+   * @return the number of bytes of root calls written to the output
+   */
+  long getBytesWritten();
+
+  /**
+   * @return the number of root calls dropped or not encoded because of the limits of the output, see {@link OutputGovernor}
+   */
+  long getRootsShed();
+
+  /**
+   * @return the number of bytes of root calls dropped because of the limits of the output
+   */
+  long getBytesShed();
+
+  /**
+   * @return the number of segments deleted to keep the output budget
+   */
+  long getSegmentsEvicted();
+
+  /**
+   * @return the number of root calls added to aggregated statistics because of the limits of the output
+   */
+  long getRootsAggregated();
+
+  /**
+   * @return the number of times the call stack of a thread did not match the probes and was repaired
+   */
+  long getRepairedStacks();
+
+  /**
+   * @return the last measured cost of a recorded call in nanoseconds, see {@link ProbeCalibration}
+   */
+  long getProbeCostInNanos();
+
+  long getMinTimeToTrackInMicros();
+
+  void setMinTimeToTrackInMicros(long value);
+
+  long getMinRootTimeToTrackInMicros();
+
+  void setMinRootTimeToTrackInMicros(long value);
+
+  /**
+   * @return false if root calls are not written, because the output is paused or the disk is almost full
+   */
+  boolean isOutputEnabled();
+
+  /**
+   * Stop writing root calls. Calls are still measured.
+   */
+  void pauseOutput();
+
+  void resumeOutput();
+
+  /**
+   * @see PerfAgent#addRule(String)
+   */
+  void addRule(String rule);
+
+  /**
+   * @see PerfAgent#removeRule(String)
+   */
+  void removeRule(String rule);
+}
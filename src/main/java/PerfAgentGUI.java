@@ -13,9 +13,10 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
@@ -346,11 +347,11 @@ public class PerfAgentGUI extends JFrame implements ActionListener, MouseListene
       DefaultMutableTreeNode root = (DefaultMutableTreeNode) tree.getModel().getRoot();
       BufferedReader reader = null;
       try {
-        reader = new BufferedReader(new FileReader(selectedFile));
+        reader = new BufferedReader(new InputStreamReader(CompressedTraceInput.open(selectedFile), StandardCharsets.UTF_8));
         String line;
         do {
           line = reader.readLine();
-          if (line != null) {
+          if (line != null && !line.startsWith(JsonTraceFormat.META_LINE_PREFIX)) {
             root.add(loadCallTree(line));
           }
         } while (line != null);
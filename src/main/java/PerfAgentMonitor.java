@@ -1,13 +1,18 @@
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.Writer;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Monitor for classes instrumented.
@@ -16,63 +21,294 @@ import java.util.concurrent.TimeUnit;
  */
 public class PerfAgentMonitor {
 
-  private static ThreadLocal<List<TrackInfo>> monitorsTL                       = new ThreadLocal<List<TrackInfo>>() {
-    @Override protected List<TrackInfo> initialValue() {
-      return new ArrayList<>();
-    }
-  };
-  private static ThreadLocal<Integer>         deepTL                           = new ThreadLocal<Integer>() {
-    @Override protected Integer initialValue() {
-      return 0;
+  /** index returned for calls of a root call which is not sampled */
+  private static final int UNSAMPLED   = -1;
+  /** index returned for a call exceeding the limits of its root call, see {@link #maxCallsPerRoot(int)} */
+  private static final int OVERFLOW    = -2;
+  /** index found for the end of a call which is not running on the thread */
+  private static final int NOT_RUNNING = -3;
+
+  /** methods recorded for tasks submitted to executors, see {@link #wrapTask(Runnable)} */
+  private static final int        SUBMIT_TASK_METHOD_ID     = MethodRegistry.register("PerfAgent.submitTask(long)");
+  private static final int        RUN_TASK_METHOD_ID        = MethodRegistry.register("PerfAgent.runTask(long)");
+  private static final int        TASK_QUEUE_WAIT_METHOD_ID = MethodRegistry.register("PerfAgent.taskQueueWait()");
+  /** method of the calls recorded to measure the cost of the probes, see {@link #measureCallCostInNanos(int)} */
+  private static final int        CALIBRATION_METHOD_ID     = MethodRegistry.register("PerfAgent.calibration()");
+  private static final AtomicLong taskIds                   = new AtomicLong();
+  /** number of times the stack of a thread did not match the probes, see {@link #isBalanced(CallStack, int, long, boolean)} */
+  private static final AtomicLong repairedStacks            = new AtomicLong();
+  /** root calls queued for writing, and root calls not written because they are too short or the output is disabled */
+  private static final AtomicLong rootsRecorded             = new AtomicLong();
+  private static final AtomicLong rootsIgnored              = new AtomicLong();
+
+  private static ThreadLocal<CallStack> callStackTL = new ThreadLocal<CallStack>() {
+    @Override protected CallStack initialValue() {
+      return arrayCallStack ? new ArrayCallStack() : new TrackInfoCallStack();
     }
   };
-  private static long                         minTimeToTrackInMicros           = 0;
-  private static long                         minRootTimeToTrackInMicros       = 0;
-
-  private static final Semaphore ACCESS_FILE_SEMAPHORE = new Semaphore(1, false);
+  private static volatile long minTimeToTrackInNanos          = 0;
+  private static volatile long minRootTimeToTrackInNanos      = 0;
+  private static Clock         clock                          = new NanoClock();
+  private static boolean       arrayCallStack                 = false;
+  private static TraceFormat   traceFormat                    = new JsonTraceFormat();
+  private static boolean       aggregateCalls                 = false;
+  private static long          aggregateDumpIntervalInSeconds = 60;
+  private static int           maxCallsPerRoot                = 0;
+  private static int           maxDeep                        = 0;
+  private static boolean       collapseSiblingCalls           = false;
 
   private static String                   outputFilePath;
   private static File                     outputFile;
+  private static boolean                  appendOutput;
+  private static String                   dictionaryFilePath;
   private static ScheduledExecutorService scheduler;
+  private static TraceWriter              traceWriter;
+  private static int                      writerQueueSize                 = TraceWriter.DEFAULT_QUEUE_SIZE;
+  private static long                     writerFlushIntervalInMillis     = TraceWriter.DEFAULT_FLUSH_INTERVAL_IN_MILLIS;
+  private static long                     segmentSizeInMegabytes          = 0;
+  private static long                     segmentDurationInMinutes        = 0;
+  private static int                      maxSegments                     = 0;
+  private static boolean                  compressOutput                  = false;
+  private static int                      compressionBlockSizeInKilobytes = CompressedTraceOutput.DEFAULT_BLOCK_SIZE_IN_KILOBYTES;
+  private static InetSocketAddress        aggregatorAddress;
+  private static String                   aggregatorSourceName            = ManagementFactory.getRuntimeMXBean().getName();
+  private static long                     aggregatorBufferSizeInKilobytes = SocketTraceOutput.DEFAULT_BUFFER_SIZE_IN_KILOBYTES;
+  private static long                     outputBudgetInMegabytes         = 0;
+  private static long                     outputMaxKilobytesPerSecond     = 0;
+  private static long                     minFreeSpaceInMegabytes         = 0;
+  private static int                      outputBudgetPolicy              = OutputGovernor.DROP_NEW;
+  private static OutputGovernor           outputGovernor;
+  private static long                     aggregatedRootsDumped;
 
-  private static boolean logOutputEnabled = true;
+  /** output paused from {@link PerfAgentControl}, independently of the limits of the {@link OutputGovernor} */
+  private static volatile boolean outputPaused = false;
+  private static boolean          jmx          = false;
 
-  private static class TrackInfo {
-    String   methodName;
-    int      deep;
-    long     startTime;
-    long     durationInMicros;
-    Object[] paramValues;
+  /**
+   * Call by weaved method before calling the real code. Methods tracking parameters then call {@link #param(int, Object)} or one of
+   * its primitive variants for each parameter.
+   *
+   * @param methodId the id of the method in the {@link MethodRegistry}
+   * @param debug    specify if debugging is activated for this method call
+   * @return the index of the monitor in the stack.
+   */
+  public static int beforeMethod(int methodId, boolean debug) {
+    if (StartupProfile.isActive()) {
+      StartupProfile.called(methodId);
+    }
+    CallStack callStack = callStackTL.get();
+    if (callStack.unsampledDeep > 0) {
+      callStack.unsampledDeep++;
+      return UNSAMPLED;
+    }
+    if (callStack.deep == 0) {
+      if (callStack.size() > 0) {
+        repair(callStack, "calls left by a previous root call", debug);
+      }
+      if (!RootSampler.sample(callStack)) {
+        callStack.unsampledDeep = 1;
+        return UNSAMPLED;
+      }
+    }
+    if (exceedsLimits(callStack)) {
+      return overflow(callStack, methodId);
+    }
+    return push(callStack, methodId, debug);
+  }
 
-    TrackInfo(String methodName,
-        int deep,
-        long startTime,
-        Object[] paramValues) {
-      this.methodName = methodName;
-      this.deep = deep;
-      this.startTime = startTime;
-      this.paramValues = paramValues;
+  /**
+   * @return true if a call starting now can not be recorded without exceeding the maximum number of calls or the maximum deep of the
+   * root call
+   */
+  private static boolean exceedsLimits(CallStack callStack) {
+    return !aggregateCalls && (maxCallsPerRoot > 0 && callStack.size() >= maxCallsPerRoot || maxDeep > 0 && callStack.deep >= maxDeep);
+  }
+
+  /**
+   * Start a call which is not recorded but folded under the running call when it ends. Its sub calls are only counted like calls of a
+   * root call which is not sampled.
+   */
+  private static int overflow(CallStack callStack, int methodId) {
+    callStack.probes++;
+    callStack.overflowMethodId = methodId;
+    callStack.overflowStartTime = clock.nanoTime();
+    callStack.overflowing = true;
+    callStack.unsampledDeep = 1;
+    return OVERFLOW;
+  }
+
+  private static int push(CallStack callStack, int methodId, boolean debug) {
+    callStack.probes++;
+    int deep = callStack.incrDeep();
+    if (debug) {
+      System.out.println("Method " + MethodRegistry.name(methodId) + " is called (deep: " + deep + " called from " + findParent(callStack, callStack.size(), deep) + ")");
     }
+    int index = callStack.push(methodId, deep, clock.nanoTime());
+    callStack.running(deep, index);
+    // replaced by the number of calls recorded under this call when it ends
+    callStack.nestedCalls(index, callStack.probes);
+    return index;
   }
 
   /**
-   * Call by weaved method before calling the real code
+   * Call by weaved method before submitting a task to an executor. If a root call is recorded on the thread, the task is wrapped so
+   * that its calls are recorded as a root call named <code>PerfAgent.runTask(taskId)</code>, and a call named
+   * <code>PerfAgent.submitTask(taskId)</code> is added to the calls of the current root call. The time spent by the task in the
+   * executor queue is recorded as a sub call <code>PerfAgent.taskQueueWait()</code> of the task root call.
    *
-   * @param methodName  the method name
-   * @param debug       specify if debugging is activated for this method call
-   * @param paramValues the parameter value
-   * @return the index of the monitor in the stack.
+   * @return the task to submit
    */
-  public static int beforeMethod(String methodName, boolean debug, Object... paramValues) {
-    int deep = incrDeep();
-    int monitorsIndex = monitorsTL.get().size();
-    if (debug) {
-      System.out.println("Method " + methodName + " is called (deep: " + deep + " called from " + findParent(monitorsIndex, deep) + ")");
+  public static Runnable wrapTask(Runnable task) {
+    if (task == null || task instanceof TracedRunnable || !isRecording()) {
+      return task;
+    }
+    long taskId = taskIds.incrementAndGet();
+    return new TracedRunnable(task, taskId, recordTaskSubmission(taskId));
+  }
+
+  /**
+   * @see #wrapTask(Runnable)
+   */
+  public static <V> Callable<V> wrapTask(Callable<V> task) {
+    if (task == null || task instanceof TracedCallable || !isRecording()) {
+      return task;
+    }
+    long taskId = taskIds.incrementAndGet();
+    return new TracedCallable<>(task, taskId, recordTaskSubmission(taskId));
+  }
+
+  private static boolean isRecording() {
+    CallStack callStack = callStackTL.get();
+    return callStack.deep > 0 && callStack.unsampledDeep == 0;
+  }
+
+  /**
+   * @return the time of the submission
+   */
+  private static long recordTaskSubmission(long taskId) {
+    long now = clock.nanoTime();
+    CallStack callStack = callStackTL.get();
+    if (!aggregateCalls && !exceedsLimits(callStack)) {
+      callStack.probes++;
+      callStack.push(SUBMIT_TASK_METHOD_ID, callStack.deep + 1, now);
+      callStack.params.add(taskId);
+    }
+    return now;
+  }
+
+  /**
+   * Called by a wrapped task before running. Roots of tasks submitted from a recorded root call are always recorded.
+   *
+   * @return the index of the monitor in the stack
+   */
+  static int beforeTask(long taskId, long submitTime) {
+    CallStack callStack = callStackTL.get();
+    if (callStack.unsampledDeep > 0) {
+      callStack.unsampledDeep++;
+      return UNSAMPLED;
+    }
+    if (exceedsLimits(callStack)) {
+      return overflow(callStack, RUN_TASK_METHOD_ID);
+    }
+    int monitorsIndex = push(callStack, RUN_TASK_METHOD_ID, false);
+    callStack.params.add(taskId);
+    long queueWaitInNanos = callStack.startTime(monitorsIndex) - submitTime;
+    if (aggregateCalls) {
+      CallStatistics.record(RUN_TASK_METHOD_ID, TASK_QUEUE_WAIT_METHOD_ID, queueWaitInNanos / 1000);
+    } else {
+      int queueWaitIndex = callStack.push(TASK_QUEUE_WAIT_METHOD_ID, callStack.deep + 1, submitTime);
+      callStack.durationInNanos(queueWaitIndex, queueWaitInNanos);
     }
-    monitorsTL.get().add(new TrackInfo(methodName, deep, System.nanoTime() / 1000, paramValues));
     return monitorsIndex;
   }
 
+  public static void param(int monitorsIndex, boolean value) {
+    CallStack callStack = paramsCallStack(monitorsIndex);
+    if (callStack != null) {
+      callStack.params.add(value);
+    }
+  }
+
+  public static void param(int monitorsIndex, byte value) {
+    param(monitorsIndex, (int) value);
+  }
+
+  public static void param(int monitorsIndex, char value) {
+    CallStack callStack = paramsCallStack(monitorsIndex);
+    if (callStack != null) {
+      callStack.params.add(value);
+    }
+  }
+
+  public static void param(int monitorsIndex, short value) {
+    param(monitorsIndex, (int) value);
+  }
+
+  public static void param(int monitorsIndex, int value) {
+    CallStack callStack = paramsCallStack(monitorsIndex);
+    if (callStack != null) {
+      callStack.params.add(value);
+    }
+  }
+
+  public static void param(int monitorsIndex, long value) {
+    CallStack callStack = paramsCallStack(monitorsIndex);
+    if (callStack != null) {
+      callStack.params.add(value);
+    }
+  }
+
+  public static void param(int monitorsIndex, float value) {
+    CallStack callStack = paramsCallStack(monitorsIndex);
+    if (callStack != null) {
+      callStack.params.add(value);
+    }
+  }
+
+  public static void param(int monitorsIndex, double value) {
+    CallStack callStack = paramsCallStack(monitorsIndex);
+    if (callStack != null) {
+      callStack.params.add(value);
+    }
+  }
+
+  /**
+   * Call by weaved methods tracking parameters after {@link #beforeMethod(int, boolean)}, once per parameter in the order of the
+   * parameters. The value is converted to text now by its {@link ParamRenderer} so that it is not retained until the root call ends.
+   *
+   * @param monitorsIndex the index returned by {@link #beforeMethod(int, boolean)}
+   * @param value         the value of the parameter
+   */
+  public static void param(int monitorsIndex, Object value) {
+    CallStack callStack = paramsCallStack(monitorsIndex);
+    if (callStack != null) {
+      int maxLength = callStack.params.remainingLength();
+      String text = ParamValues.DROPPED;
+      if (maxLength > 0) {
+        // calls of tracked methods made by the renderer, for example toString(), are not recorded
+        callStack.unsampledDeep++;
+        try {
+          text = ParamRenderer.renderValue(value, maxLength);
+        } finally {
+          callStack.unsampledDeep--;
+        }
+      }
+      callStack.params.add(text);
+    }
+  }
+
+  /**
+   * @return the stack of the thread if the call at the given index is recorded with its parameters, null otherwise. Values are added
+   * after the values of the previous calls, so the call must be the last one of the stack.
+   */
+  private static CallStack paramsCallStack(int monitorsIndex) {
+    if (monitorsIndex < 0 || aggregateCalls) {
+      return null;
+    }
+    CallStack callStack = callStackTL.get();
+    return monitorsIndex == callStack.size() - 1 ? callStack : null;
+  }
+
   /**
    * Call by weaved method after calling the real code
    *
@@ -80,183 +316,603 @@ public class PerfAgentMonitor {
    * @param debug         specify if debugging is activated for this method call
    */
   public static void afterMethod(int monitorsIndex, boolean debug) {
-    long now = System.nanoTime() / 1000;
-    TrackInfo trackInfo = monitorsTL.get().get(monitorsIndex);
-    trackInfo.durationInMicros = now - trackInfo.startTime;
-    if (trackInfo.durationInMicros < minTimeToTrackInMicros) {
+    afterMethod(monitorsIndex, null, debug);
+  }
+
+  /**
+   * Call by weaved method when the real code throws, before the exception is thrown to the caller. The call is recorded like a call
+   * returning normally, with the class of the exception.
+   *
+   * @param thrown        the exception thrown by the real code
+   * @param monitorsIndex the index of the monitor for this call in the stack
+   * @param debug         specify if debugging is activated for this method call
+   */
+  public static void afterThrowing(Throwable thrown, int monitorsIndex, boolean debug) {
+    afterMethod(monitorsIndex, thrown.getClass().getName(), debug);
+  }
+
+  /**
+   * Call by methods weaved without keeping the index returned by {@link #beforeMethod(int, boolean)}, see
+   * {@link BytecodeWeaver}. The call ending is the last call of the method started on the thread, so its index is found in the stack.
+   *
+   * @param methodId the id of the method in the {@link MethodRegistry}
+   * @param debug    specify if debugging is activated for this method call
+   */
+  public static void afterMethodById(int methodId, boolean debug) {
+    afterMethod(findRunning(callStackTL.get(), methodId), null, debug);
+  }
+
+  /**
+   * @see #afterThrowing(Throwable, int, boolean)
+   * @see #afterMethodById(int, boolean)
+   */
+  public static void afterThrowingById(Throwable thrown, int methodId, boolean debug) {
+    afterMethod(findRunning(callStackTL.get(), methodId), thrown.getClass().getName(), debug);
+  }
+
+  /**
+   * @return the index of the last running call of the method, {@link #NOT_RUNNING} if the method is not running
+   */
+  private static int findRunning(CallStack callStack, int methodId) {
+    if (callStack.unsampledDeep == 1 && callStack.overflowing) {
+      return OVERFLOW;
+    }
+    if (callStack.unsampledDeep > 0) {
+      return UNSAMPLED;
+    }
+    for (int deep = callStack.deep; deep > 0; deep--) {
+      int index = callStack.runningIndex(deep);
+      if (callStack.methodId(index) == methodId) {
+        return index;
+      }
+    }
+    return NOT_RUNNING;
+  }
+
+  private static void afterMethod(int monitorsIndex, String thrown, boolean debug) {
+    CallStack callStack = callStackTL.get();
+    if (monitorsIndex == UNSAMPLED) {
+      if (callStack.unsampledDeep > 0) {
+        callStack.unsampledDeep--;
+      } else {
+        repair(callStack, "end of a call which was not started", debug);
+      }
+      return;
+    }
+    long now = clock.nanoTime();
+    if (monitorsIndex == OVERFLOW) {
+      callStack.unsampledDeep = 0;
+      callStack.overflowing = false;
+      callStack.fold(callStack.deep, callStack.overflowMethodId, callStack.overflowStartTime, now - callStack.overflowStartTime,
+          maxCallsPerRoot > 0 ? maxCallsPerRoot : Integer.MAX_VALUE);
+      return;
+    }
+    if (!isBalanced(callStack, monitorsIndex, now, debug)) {
+      return;
+    }
+    int methodId = callStack.methodId(monitorsIndex);
+    int deep = callStack.deep(monitorsIndex);
+    long durationInNanos = now - callStack.startTime(monitorsIndex);
+    callStack.durationInNanos(monitorsIndex, durationInNanos);
+    callStack.thrown(monitorsIndex, thrown);
+    callStack.nestedCalls(monitorsIndex, callStack.probes - callStack.nestedCalls(monitorsIndex));
+    if (StartupProfile.isActive()) {
+      StartupProfile.ended(methodId, durationInNanos);
+    }
+    if (aggregateCalls) {
+      // calls are removed as soon as they are aggregated so the stack only contains running calls and the caller is the previous one
+      if (methodId != CALIBRATION_METHOD_ID) {
+        CallStatistics.record(monitorsIndex > 0 ? callStack.methodId(monitorsIndex - 1) : -1, methodId, durationInNanos / 1000);
+      }
+      callStack.truncate(monitorsIndex);
+      if (callStack.decrDeep() == 0) {
+        RootSampler.rootRecorded(callStack.probes);
+        callStack.probes = 0;
+      }
+      return;
+    }
+    if (durationInNanos < minTimeToTrackInNanos) {
       if (debug) {
-        System.out.println("Time spent on " + trackInfo.methodName + ": " + (trackInfo.durationInMicros / 1000) + "˜ms. (deep: " + trackInfo.deep
-            + " called from " + findParent(monitorsIndex, trackInfo.deep) + "). Ignored because below " + (minTimeToTrackInMicros / 1000) + "ms");
+        System.out.println("Time spent on " + MethodRegistry.name(methodId) + ": " + (durationInNanos / 1000000) + "˜ms. (deep: " + deep
+            + " called from " + findParent(callStack, monitorsIndex, deep) + "). Ignored because below " + (minTimeToTrackInNanos / 1000000) + "ms");
       }
-      monitorsTL.get().remove(monitorsIndex);
+      // sub calls are shorter than the call so they are removed with it
+      callStack.truncate(monitorsIndex);
+    } else if (collapseSiblingCalls) {
+      callStack.collapse(monitorsIndex);
     }
     if (debug) {
-      System.out.println("Time spent on " + trackInfo.methodName + ": " + (trackInfo.durationInMicros / 1000) + "ms. (deep: " + trackInfo.deep
-          + " called from " + findParent(monitorsIndex, trackInfo.deep) + ")");
-    }
-    if (trackInfo.deep == 1) {
-      String content = null;
-      if (logOutputEnabled) {
-        if (trackInfo.durationInMicros >= minRootTimeToTrackInMicros) {
-          content = createJsonFromStack(monitorsTL.get());
+      System.out.println("Time spent on " + MethodRegistry.name(methodId) + ": " + (durationInNanos / 1000000) + "ms. (deep: " + deep
+          + " called from " + findParent(callStack, monitorsIndex, deep) + ")" + (thrown != null ? ". Threw " + thrown : ""));
+    }
+    if (deep == 1) {
+      RootSampler.rootRecorded(callStack.probes);
+      callStack.probes = 0;
+      byte[] content = null;
+      boolean aggregated = false;
+      if (isOutputEnabled()) {
+        if (durationInNanos >= minRootTimeToTrackInNanos) {
+          if (outputGovernor != null && outputGovernor.isDegraded()) {
+            aggregate(callStack);
+            outputGovernor.aggregated();
+            aggregated = true;
+          } else {
+            content = traceFormat.encode(callStack);
+          }
         }
+      } else if (outputGovernor != null && outputGovernor.isShedding()) {
+        outputGovernor.skipped();
       }
-      monitorsTL.get().clear();
-      deepTL.set(0);
+      callStack.clear();
+      callStack.deep = 0;
       if (content != null) {
-        try {
-          if (debug) {
-            System.out.println("Trying to acquire semeaphore to write content");
-          }
-          ACCESS_FILE_SEMAPHORE.acquire();
-          try (Writer writer = new FileWriter(outputFilePath, true)) {
-            writer.append(content);
-          }
-        } catch (IOException | InterruptedException e) {
-          //nothing to do
-        } finally {
-          ACCESS_FILE_SEMAPHORE.release();
+        boolean queued = traceWriter.offer(content);
+        if (queued) {
+          rootsRecorded.incrementAndGet();
         }
         if (debug) {
-          System.out.println("Release semaphore");
+          System.out.println(queued ? "Content queued for writing" : "Content dropped because the writer queue is full");
         }
-      } else {
+      } else if (!aggregated) {
+        rootsIgnored.incrementAndGet();
         if (debug) {
-          System.out.println("Content for " + trackInfo.methodName + " null");
+          System.out.println("Content for " + MethodRegistry.name(methodId) + " null");
         }
       }
     } else {
-      decrDeep();
-    }
-  }
-
-  private static String createJsonFromStack(List<TrackInfo> trackInfos) {
-    StringBuilder buffer = new StringBuilder();
-    for (int i1 = 0; i1 < trackInfos.size(); i1++) {
-      TrackInfo trackInfo = trackInfos.get(i1);
-      TrackInfo nextTrackInfo = (i1 < trackInfos.size() - 1) ? trackInfos.get(i1 + 1) : null;
-      int currentDeep = trackInfo.deep;
-      int nextElementDeep = nextTrackInfo != null ? nextTrackInfo.deep : -1;
-      boolean isNextCallSubCall = nextElementDeep == (currentDeep + 1);
-      boolean isNextCallSequentialCall = nextElementDeep == currentDeep;
-      boolean isLastCall = nextTrackInfo == null;
-      double totalTime = (double) trackInfo.durationInMicros / 1000;
-      buffer.append("\"").append(toMethodName(trackInfo.methodName, trackInfo.paramValues)).append("\":\"").append(totalTime).append("ms\"");
-      if (isLastCall) {
-        for (int d = currentDeep; d > 1; d--) {
-          buffer.append("}]");
-        }
-      } else {
-        if (isNextCallSubCall) {
-          buffer.append(",\"subcalls\":[{");
-        } else if (isNextCallSequentialCall) {
-          buffer.append("},{");
-        } else {
-          for (int d = nextElementDeep; d < currentDeep; d++) {
-            buffer.append("}]");
-          }
-          buffer.append("},{");
-        }
+      callStack.decrDeep();
+    }
+  }
+
+  /**
+   * Add the calls of a root call to the aggregated statistics instead of writing it, while the {@link OutputGovernor} degrades the
+   * output. Calls are stored in the order they started, so the caller of a call is the last call started one level above it.
+   */
+  private static void aggregate(CallStack callStack) {
+    int[] callers = new int[16];
+    for (int i = 0; i < callStack.size(); i++) {
+      int deep = callStack.deep(i);
+      int methodId = callStack.methodId(i);
+      if (deep >= callers.length) {
+        callers = Arrays.copyOf(callers, Math.max(callers.length * 2, deep + 1));
+      }
+      callers[deep] = methodId;
+      int count = callStack.count(i);
+      long durationInMicros = callStack.durationInNanos(i) / count / 1000;
+      for (int c = 0; c < count; c++) {
+        CallStatistics.record(deep > 1 ? callers[deep - 1] : -1, methodId, durationInMicros);
       }
     }
-    if (buffer.length() == 0) {
-      return null;
-    } else {
-      return "{" + buffer.toString() + "}\n";
+  }
+
+  /**
+   * Check that the call ending is the call running on the thread. Otherwise some calls started after it did not end, for example
+   * because they were woven before a change of the rules or because the probe ending them failed. These calls are ended now and the
+   * stack is back to the call ending. If the call ending is not running at all, the root call can not be recorded and the stack is
+   * cleared.
+   *
+   * @return false if the call can not be recorded
+   */
+  private static boolean isBalanced(CallStack callStack, int monitorsIndex, long now, boolean debug) {
+    if (callStack.unsampledDeep == 0 && callStack.deep > 0 && monitorsIndex == callStack.runningIndex(callStack.deep)) {
+      return true;
+    }
+    int deep = monitorsIndex >= 0 && monitorsIndex < callStack.size() ? callStack.deep(monitorsIndex) : 0;
+    if (deep == 0 || deep > callStack.deep || callStack.runningIndex(deep) != monitorsIndex) {
+      repair(callStack, "end of a call which is not running", debug);
+      return false;
+    }
+    // calls which are not ended are recorded as running until now
+    for (int d = callStack.deep; d > deep; d--) {
+      int index = callStack.runningIndex(d);
+      if (!aggregateCalls) {
+        callStack.durationInNanos(index, now - callStack.startTime(index));
+        callStack.nestedCalls(index, callStack.probes - callStack.nestedCalls(index));
+      }
     }
+    callStack.deep = deep;
+    callStack.unsampledDeep = 0;
+    callStack.overflowing = false;
+    repaired(callStack, "calls not ended under " + MethodRegistry.name(callStack.methodId(monitorsIndex)), debug);
+    return true;
   }
 
-  private static String toMethodName(String methodName, Object[] parameterValues) {
-    if (parameterValues == null || parameterValues.length == 0) {
-      return methodName;
-    } else {
-      int start = methodName.indexOf("(");
-      String[] parameters = methodName.substring(start, methodName.indexOf(")")).split(",");
-      StringBuilder sb = new StringBuilder();
-      sb.append(methodName.substring(0, start)).append("(");
-      for (int i = 0; i < parameters.length; i++) {
-        if (i != 0) {
-          sb.append(",");
-        }
-        sb.append(parameterValues[i]);
+  /**
+   * Clear the stack of the thread when its calls do not match the probes, the current root call is not recorded.
+   */
+  private static void repair(CallStack callStack, String reason, boolean debug) {
+    reset(callStack);
+    repaired(callStack, reason, debug);
+  }
+
+  private static void reset(CallStack callStack) {
+    callStack.clear();
+    callStack.deep = 0;
+    callStack.unsampledDeep = 0;
+    callStack.overflowing = false;
+    callStack.probes = 0;
+  }
+
+  /**
+   * Measure the time added to a call by each call recorded under it: the time spent in both probes of the sub call. Calls are recorded
+   * with the configuration of the agent under a call which is never written, then removed. Must be called on a thread which does not
+   * run tracked calls.
+   *
+   * @return the mean time in nanoseconds spent in the probes of a call
+   */
+  static double measureCallCostInNanos(int calls) {
+    CallStack callStack = callStackTL.get();
+    if (callStack.deep > 0 || callStack.unsampledDeep > 0) {
+      throw new IllegalStateException("Tracked calls are running on thread " + Thread.currentThread().getName());
+    }
+    push(callStack, CALIBRATION_METHOD_ID, false);
+    try {
+      long start = System.nanoTime();
+      for (int i = 0; i < calls; i++) {
+        afterMethod(beforeMethod(CALIBRATION_METHOD_ID, false), false);
       }
-      sb.append(")");
-      return sb.toString()
-          .replace("'", "\'")
-          .replace("\\", "\\\\")
-          .replace("\n", "")
-          .replace("\t", "")
-          .replace("\"", "\\\"");
+      return (double) (System.nanoTime() - start) / calls;
+    } finally {
+      reset(callStack);
     }
   }
 
-  private static String findParent(int monitorsIndex, int deep) {
+  private static void repaired(CallStack callStack, String reason, boolean debug) {
+    long count = repairedStacks.incrementAndGet();
+    System.setProperty("JavaPerfAgent.repairedStacks", String.valueOf(count));
+    if (debug) {
+      System.out.println("Call stack of thread " + Thread.currentThread().getName() + " repaired: " + reason);
+    }
+  }
+
+  private static String findParent(CallStack callStack, int monitorsIndex, int deep) {
     for (int i = monitorsIndex - 1; i >= 0; i--) {
-      TrackInfo trackInfo = monitorsTL.get().get(i);
-      if (trackInfo.deep == deep - 1) {
-        return trackInfo.methodName;
+      if (callStack.deep(i) == deep - 1) {
+        return MethodRegistry.name(callStack.methodId(i));
       }
     }
     return null;
   }
 
-  private static int incrDeep() {
-    int value = deepTL.get();
-    value += 1;
-    deepTL.set(value);
-    return value;
-  }
-
-  private static int decrDeep() {
-    int value = deepTL.get();
-    value -= 1;
-    deepTL.set(value);
-    return value;
+  /**
+   * @return true if the output file already contains results of a previous run
+   * @throws IOException if the output file does not start with the header of the format of the results
+   */
+  private static boolean appendsToPreviousRun() throws IOException {
+    if (outputFile.length() == 0) {
+      return false;
+    }
+    byte[] signature = traceFormat.signature();
+    byte[] start = new byte[signature.length];
+    int count = 0;
+    // compressed results are compared once decompressed, the output rejects a file which is not compressed
+    try (InputStream in = compressOutput ? CompressedTraceInput.open(outputFile) : new FileInputStream(outputFile)) {
+      int read;
+      while (count < start.length && (read = in.read(start, count, start.length - count)) > 0) {
+        count += read;
+      }
+    }
+    if (count == 0) {
+      // a compressed file without a complete block is written again
+      return false;
+    }
+    if (count < start.length || !Arrays.equals(start, signature)) {
+      throw new IOException(outputFilePath + " does not start with the header of the " + traceFormat.getClass().getSimpleName()
+          + ", results can not be appended to it");
+    }
+    return true;
   }
 
   public static String outputFilePath() {
     return outputFilePath;
   }
 
-  public static void outputFilePath(String arg) {
+  /**
+   * @param append true to append results to the ones of a previous run
+   */
+  public static void outputFilePath(String arg, boolean append) {
     outputFilePath = arg;
     outputFile = new File(arg);
+    appendOutput = append;
+    dictionaryFilePath = arg + ".methods";
+    // ids are only valid for the current JVM so the dictionary is never appended to the one of a previous run, neither are binary
+    // results which refer to them
+    new File(dictionaryFilePath).delete();
     System.setProperty("JavaPerfAgent.output.filepath", arg);
     System.setProperty("JavaPerfAgent.output.enabled", "true");
   }
 
-  public static void minTimeToTrackInMicros(long value) {
-    minTimeToTrackInMicros = value;
+  /**
+   * Start the thread writing results. Must be called once the configuration is loaded.
+   *
+   * @throws IOException if the output can not be opened or results can not be appended to it
+   */
+  public static void start() throws IOException {
+    if (aggregateCalls && !(traceFormat instanceof JsonTraceFormat)) {
+      System.err.println("Aggregated statistics are written in JSON");
+      traceFormat = new JsonTraceFormat();
+    }
+    if (appendOutput && traceFormat instanceof BinaryTraceFormat) {
+      throw new IOException("Binary results can not be appended to the ones of a previous run, the ids of their methods are lost, "
+          + "remove the '+' at the end of " + outputFilePath);
+    }
+    boolean appended = aggregatorAddress == null && (compressOutput || segmentSizeInMegabytes <= 0) && appendsToPreviousRun();
+    if (StartupProfile.durationInSeconds() > 0) {
+      StartupProfile.start(scheduler(), outputFilePath);
+    }
+    clock.start();
+    // the cost of the probes is written in the header of the output
+    ProbeCalibration.calibrate();
+    TraceOutput output;
+    String writerDictionaryFilePath = dictionaryFilePath;
+    if (aggregatorAddress != null) {
+      output = new SocketTraceOutput(aggregatorAddress, aggregatorSourceName, outputFile.getName(), traceFormat.fileHeader(),
+          aggregatorBufferSizeInKilobytes * 1024);
+      // the aggregator writes the dictionary next to the results
+      writerDictionaryFilePath = null;
+    } else if (compressOutput) {
+      if (segmentSizeInMegabytes > 0) {
+        System.err.println("Compressed results are written in a single file, segment options are ignored");
+      }
+      output = new CompressedTraceOutput(outputFilePath, traceFormat.fileHeader(), compressionBlockSizeInKilobytes * 1024);
+    } else if (segmentSizeInMegabytes > 0) {
+      output = new SegmentedTraceOutput(outputFilePath, segmentSizeInMegabytes * 1024 * 1024, segmentDurationInMinutes, maxSegments,
+          traceFormat.fileHeader());
+    } else {
+      output = new FileTraceOutput(outputFilePath, traceFormat.fileHeader());
+    }
+    if (outputBudgetInMegabytes > 0 || outputMaxKilobytesPerSecond > 0 || minFreeSpaceInMegabytes > 0) {
+      boolean json = traceFormat instanceof JsonTraceFormat;
+      if (outputBudgetPolicy == OutputGovernor.AGGREGATE && !json) {
+        System.err.println("Aggregated statistics are written in JSON, root calls over the output limits are dropped");
+        outputBudgetPolicy = OutputGovernor.DROP_NEW;
+      }
+      output = outputGovernor = new OutputGovernor(output, outputBudgetInMegabytes * 1024 * 1024, outputMaxKilobytesPerSecond * 1024,
+          minFreeSpaceInMegabytes * 1000000, outputFile.getAbsoluteFile().getParentFile(), outputBudgetPolicy,
+          json ? JsonTraceFormat.META_LINE_PREFIX.getBytes(StandardCharsets.UTF_8) : null);
+    }
+    traceWriter = new TraceWriter(output, writerDictionaryFilePath, writerQueueSize, writerFlushIntervalInMillis);
+    traceWriter.start();
+    if (appended) {
+      // the header of the previous run applies until the one of this run
+      byte[] header = traceFormat.headerUpdate();
+      if (header != null) {
+        traceWriter.offer(header);
+      }
+    }
+    RootSampler.start(scheduler());
+    long calibrationIntervalInSeconds = ProbeCalibration.intervalInSeconds();
+    if (calibrationIntervalInSeconds > 0) {
+      scheduler().scheduleAtFixedRate(new Runnable() {
+        @Override public void run() {
+          ProbeCalibration.calibrate();
+          byte[] header = traceFormat.headerUpdate();
+          if (header != null && isOutputEnabled()) {
+            traceWriter.offer(header);
+          }
+        }
+      }, Math.min(ProbeCalibration.FIRST_INTERVAL_IN_SECONDS, calibrationIntervalInSeconds), calibrationIntervalInSeconds,
+          TimeUnit.SECONDS);
+    }
+    if (jmx) {
+      PerfAgentControl.register(scheduler());
+    }
+    if (aggregateCalls || outputGovernor != null && outputGovernor.policy() == OutputGovernor.AGGREGATE) {
+      scheduler().scheduleAtFixedRate(new Runnable() {
+        @Override public void run() {
+          dumpCallStatistics();
+        }
+      }, aggregateDumpIntervalInSeconds, aggregateDumpIntervalInSeconds, TimeUnit.SECONDS);
+    }
+    Runtime.getRuntime().addShutdownHook(new Thread("JavaPerfAgent-shutdown") {
+      @Override public void run() {
+        if (aggregateCalls || outputGovernor != null && outputGovernor.policy() == OutputGovernor.AGGREGATE) {
+          dumpCallStatistics();
+        }
+        StartupProfile.stop();
+        traceWriter.close();
+      }
+    });
   }
 
-  public static void minRootTimeToTrackInMicros(long value) {
-    minRootTimeToTrackInMicros = value;
-  }
-
-  public static void stopLoggingResultsOnLowDiskSpace(final long value) {
-    if (value > 0) {
-      scheduler = Executors.newScheduledThreadPool(1);
-      scheduler.scheduleAtFixedRate(new Runnable() {
-        @Override
-        public void run() {
-          if (outputFile != null) {
-            double freeSpace = outputFile.getParentFile().getUsableSpace() / 1000000.00;
-            if (logOutputEnabled) {
-              if (freeSpace < value) {
-                System.setProperty("JavaPerfAgent.output.enabled", "false");
-                System.setProperty("JavaPerfAgent.output.disabled.reason", "Free space < "+value+"Mb. Actual free space: "+outputFile.getFreeSpace()+" bytes");
-                logOutputEnabled = false;
-              }
-            } else {
-              if (freeSpace > value) {
-                System.setProperty("JavaPerfAgent.output.enabled", "true");
-                System.clearProperty("JavaPerfAgent.output.disabled.reason");
-                logOutputEnabled = true;
-              }
-            }
-          }
+  private static void dumpCallStatistics() {
+    if (!aggregateCalls) {
+      // statistics of root calls aggregated by the governor only change while it degrades the output
+      long aggregatedRoots = outputGovernor.aggregatedRoots();
+      if (aggregatedRoots == aggregatedRootsDumped) {
+        return;
+      }
+      aggregatedRootsDumped = aggregatedRoots;
+    }
+    if (isOutputEnabled()) {
+      traceWriter.offer(CallStatistics.dump());
+    }
+  }
+
+  static synchronized ScheduledExecutorService scheduler() {
+    if (scheduler == null) {
+      scheduler = Executors.newScheduledThreadPool(1, new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "JavaPerfAgent-scheduler");
+          thread.setDaemon(true);
+          return thread;
         }
-      }, 0, 1, TimeUnit.MINUTES);
+      });
     }
+    return scheduler;
+  }
+
+  public static void writerQueueSize(int value) {
+    writerQueueSize = value;
+  }
+
+  public static void writerFlushIntervalInMillis(long value) {
+    writerFlushIntervalInMillis = value;
+  }
+
+  public static void traceFormat(TraceFormat value) {
+    traceFormat = value;
+  }
+
+  public static void segmentSizeInMegabytes(long value) {
+    segmentSizeInMegabytes = value;
+  }
+
+  public static void segmentDurationInMinutes(long value) {
+    segmentDurationInMinutes = value;
+  }
+
+  public static void maxSegments(int value) {
+    maxSegments = value;
+  }
+
+  public static void compressOutput(boolean value) {
+    compressOutput = value;
+  }
+
+  public static void compressionBlockSizeInKilobytes(int value) {
+    compressionBlockSizeInKilobytes = value;
+  }
+
+  /**
+   * Send results to a {@link SocketAggregator} instead of writing them to the output file.
+   *
+   * @param value <code>&lt;HOST&gt;:&lt;PORT&gt;</code>, or <code>&lt;PORT&gt;</code> on localhost
+   */
+  public static void aggregatorAddress(String value) {
+    aggregatorAddress = SocketAggregator.parseAddress(value,
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), SocketAggregator.DEFAULT_PORT));
+  }
+
+  public static void aggregatorSourceName(String value) {
+    aggregatorSourceName = value;
+  }
+
+  public static void aggregatorBufferSizeInKilobytes(long value) {
+    aggregatorBufferSizeInKilobytes = value;
+  }
+
+  public static void aggregateCalls(boolean value) {
+    aggregateCalls = value;
+  }
+
+  public static void aggregateDumpIntervalInSeconds(long value) {
+    aggregateDumpIntervalInSeconds = value;
+  }
+
+  /**
+   * Set the maximum number of calls recorded for a root call. Calls starting once the maximum is reached are folded: only their count
+   * and times are added to an entry per method under the running call. As many entries can be created by folding, so a root call never
+   * records more than twice this number of calls. 0 for no limit.
+   */
+  public static void maxCallsPerRoot(int value) {
+    maxCallsPerRoot = value;
+  }
+
+  /**
+   * Set the maximum deep of calls recorded. Deeper calls are folded under the call running at this deep. 0 for no limit.
+   */
+  public static void maxDeep(int value) {
+    maxDeep = value;
+  }
+
+  /**
+   * Set if consecutive calls of the same method with the same parameters and without sub calls are merged into one entry with the
+   * number of calls and the min and max times.
+   */
+  public static void collapseSiblingCalls(boolean value) {
+    collapseSiblingCalls = value;
+  }
+
+  public static void minTimeToTrackInMicros(long value) {
+    minTimeToTrackInNanos = value * 1000;
+  }
+
+  public static long minTimeToTrackInMicros() {
+    return minTimeToTrackInNanos / 1000;
+  }
+
+  public static void minRootTimeToTrackInMicros(long value) {
+    minRootTimeToTrackInNanos = value * 1000;
+  }
+
+  public static long minRootTimeToTrackInMicros() {
+    return minRootTimeToTrackInNanos / 1000;
+  }
+
+  /**
+   * @return true if root calls are written or aggregated, the output can be paused or over the limits of the {@link OutputGovernor}
+   */
+  public static boolean isOutputEnabled() {
+    return !outputPaused && (outputGovernor == null || !outputGovernor.isShedding() || outputGovernor.isDegraded());
+  }
+
+  /**
+   * Stop or restart writing root calls. Calls are still measured while the output is paused.
+   */
+  public static void outputPaused(boolean value) {
+    outputPaused = value;
+    System.setProperty("JavaPerfAgent.output.paused", String.valueOf(value));
+  }
+
+  /**
+   * Set the clock read by the probes. Must be called before {@link #start()}.
+   */
+  public static void clock(Clock value) {
+    clock = value;
+  }
+
+  static Clock clock() {
+    return clock;
+  }
+
+  public static void jmx(boolean value) {
+    jmx = value;
+  }
+
+  static TraceWriter traceWriter() {
+    return traceWriter;
+  }
+
+  static long rootsRecorded() {
+    return rootsRecorded.get();
+  }
+
+  static long rootsIgnored() {
+    return rootsIgnored.get();
+  }
+
+  static long repairedStacks() {
+    return repairedStacks.get();
+  }
+
+  public static void arrayCallStack(boolean value) {
+    arrayCallStack = value;
+  }
+
+  /**
+   * Apply the policy of the {@link OutputGovernor} while the free space of the disk of the output is below the given size.
+   */
+  public static void stopLoggingResultsOnLowDiskSpace(long value) {
+    minFreeSpaceInMegabytes = value;
+  }
+
+  public static void outputBudgetInMegabytes(long value) {
+    outputBudgetInMegabytes = value;
+  }
+
+  public static void outputMaxKilobytesPerSecond(long value) {
+    outputMaxKilobytesPerSecond = value;
+  }
+
+  /**
+   * @param value {@link OutputGovernor#DROP_NEW}, {@link OutputGovernor#EVICT_OLDEST} or {@link OutputGovernor#AGGREGATE}
+   */
+  public static void outputBudgetPolicy(int value) {
+    outputBudgetPolicy = value;
+  }
+
+  static OutputGovernor outputGovernor() {
+    return outputGovernor;
   }
 }
@@ -0,0 +1,87 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure the cost of the probes so that durations can be compensated. A call recorded under another one adds the time spent in its
+ * two probes to the duration of the calling call, so a call with many short sub calls looks longer than it is. The compensated
+ * duration of a call is its duration minus this cost for each call recorded while it was running, see {@link CallStack#nestedCalls(int)}.
+ * <p>
+ * The cost is measured when the agent starts, before the output is opened so that it is written in its header, then periodically
+ * since it changes with the load of the machine and once probes are compiled by the JIT. Some JVMs do not compile code while the agent
+ * starts, so the first periodic measure is done soon after.
+ *
+ * @author olivier martin
+ */
+public class ProbeCalibration {
+
+  public static final long DEFAULT_INTERVAL_IN_SECONDS = 60;
+  /** delay of the first periodic measure, when the probes of the application are compiled */
+  static final long         FIRST_INTERVAL_IN_SECONDS   = 5;
+
+  private static final int  ROUNDS                      = 50;
+  private static final int  CALLS_PER_ROUND             = 2000;
+  /** rounds stop after this time, the cost of interpreted probes is much higher */
+  private static final long MAX_DURATION_IN_NANOS       = TimeUnit.MILLISECONDS.toNanos(50);
+
+  private static long          intervalInSeconds = DEFAULT_INTERVAL_IN_SECONDS;
+  private static volatile long callCostInNanos;
+
+  /**
+   * Measure the cost of the probes on a new thread, so that the calls recorded for the measure do not grow the call stack of a thread
+   * of the application. The cost is the lowest mean of several rounds, other rounds are slowed down by the JIT or other threads.
+   */
+  static void calibrate() {
+    final double[] lowest = {Double.MAX_VALUE};
+    Thread thread = new Thread("JavaPerfAgent-calibration") {
+      @Override public void run() {
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS && System.nanoTime() - start < MAX_DURATION_IN_NANOS; i++) {
+          lowest[0] = Math.min(lowest[0], PerfAgentMonitor.measureCallCostInNanos(CALLS_PER_ROUND));
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    if (lowest[0] != Double.MAX_VALUE) {
+      callCostInNanos(Math.round(lowest[0]));
+    }
+  }
+
+  /**
+   * @return the time in nanoseconds added to a call by each call recorded under it, 0 if not measured
+   */
+  public static long callCostInNanos() {
+    return callCostInNanos;
+  }
+
+  /**
+   * Set the cost of the probes, for example to the cost read from the header of a result file.
+   */
+  public static void callCostInNanos(long value) {
+    callCostInNanos = value;
+    System.setProperty("JavaPerfAgent.probeCostInNanos", String.valueOf(value));
+  }
+
+  /**
+   * @return the compensated duration of the call at the given index of the stack
+   */
+  static long compensatedDurationInNanos(CallStack callStack, int index) {
+    return Math.max(0, callStack.durationInNanos(index) - callStack.nestedCalls(index) * callCostInNanos);
+  }
+
+  public static long intervalInSeconds() {
+    return intervalInSeconds;
+  }
+
+  /**
+   * Set how often the cost is measured again, 0 to only measure it at startup.
+   */
+  public static void intervalInSeconds(long value) {
+    intervalInSeconds = value;
+  }
+}
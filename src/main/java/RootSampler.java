@@ -0,0 +1,102 @@
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decide when a root call starts if its calls are recorded. Calls of a root call which is not sampled only update a counter on the
+ * {@link CallStack}. Roots can be sampled:
+ * <ul>
+ *   <li>one every N root calls of a thread</li>
+ *   <li>with a fixed probability</li>
+ *   <li>with a probability adapted every second to keep the time spent in probes below a percentage of the CPU time available</li>
+ * </ul>
+ * All root calls are recorded if none of them is configured.
+ *
+ * @author olivier martin
+ */
+public class RootSampler {
+
+  private static final long       ADJUSTMENT_INTERVAL_IN_MILLIS = 1000;
+  private static final double     MIN_PROBABILITY               = 0.0001;
+  private static final AtomicLong probesRecorded                = new AtomicLong();
+  private static final AtomicLong probesTotal                   = new AtomicLong();
+
+  private static int             sampleEveryNthRoot      = 0;
+  private static double          sampleRootProbability   = 1;
+  private static double          maxProbeOverheadPercent = 0;
+  private static volatile double adaptiveProbability     = 1;
+
+  /**
+   * @return true if the root call starting on the thread of this call stack has to be recorded
+   */
+  static boolean sample(CallStack callStack) {
+    if (sampleEveryNthRoot > 1) {
+      if (++callStack.rootsSinceLastSample < sampleEveryNthRoot) {
+        return false;
+      }
+      callStack.rootsSinceLastSample = 0;
+    }
+    double probability = maxProbeOverheadPercent > 0 ? adaptiveProbability : sampleRootProbability;
+    return probability >= 1 || ThreadLocalRandom.current().nextDouble() < probability;
+  }
+
+  /**
+   * Called at the end of a root call recorded.
+   *
+   * @param probes the number of calls recorded for this root call
+   */
+  static void rootRecorded(int probes) {
+    probesTotal.addAndGet(probes);
+    if (maxProbeOverheadPercent > 0) {
+      probesRecorded.addAndGet(probes);
+    }
+  }
+
+  /**
+   * Start adapting the probability if a maximum overhead is configured.
+   */
+  static void start(ScheduledExecutorService scheduler) {
+    if (maxProbeOverheadPercent > 0) {
+      scheduler.scheduleAtFixedRate(new Runnable() {
+        @Override public void run() {
+          adjustProbability();
+        }
+      }, ADJUSTMENT_INTERVAL_IN_MILLIS, ADJUSTMENT_INTERVAL_IN_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private static void adjustProbability() {
+    double budgetInNanos = maxProbeOverheadPercent / 100 * TimeUnit.MILLISECONDS.toNanos(ADJUSTMENT_INTERVAL_IN_MILLIS)
+        * Runtime.getRuntime().availableProcessors();
+    double overheadInNanos = (double) probesRecorded.getAndSet(0) * Math.max(1, ProbeCalibration.callCostInNanos());
+    double probability = adaptiveProbability;
+    if (overheadInNanos <= 0) {
+      probability = probability * 2;
+    } else {
+      // move half way to the probability matching the budget to avoid oscillations
+      probability = (probability + probability * budgetInNanos / overheadInNanos) / 2;
+    }
+    adaptiveProbability = Math.max(MIN_PROBABILITY, Math.min(1, probability));
+    System.setProperty("JavaPerfAgent.sampling.probability", String.valueOf(adaptiveProbability));
+  }
+
+  /**
+   * @return the number of calls recorded since the start, calls of root calls which are not sampled are not counted
+   */
+  static long probes() {
+    return probesTotal.get();
+  }
+
+  public static void sampleEveryNthRoot(int value) {
+    sampleEveryNthRoot = value;
+  }
+
+  public static void sampleRootProbability(double value) {
+    sampleRootProbability = value;
+  }
+
+  public static void maxProbeOverheadPercent(double value) {
+    maxProbeOverheadPercent = value;
+  }
+}
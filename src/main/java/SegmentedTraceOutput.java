@@ -0,0 +1,227 @@
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write results into memory mapped segment files of a fixed size. A new segment is started when the current one is full or older
+ * than the segment duration, and the oldest segments are deleted to keep at most <code>maxSegments</code> files on disk.
+ * <p>
+ * Segments are named after the output file with a sequence number before the extension, for example <code>/tmp/stats.000001.json</code>
+ * for <code>/tmp/stats.json</code>, with more digits after the 999999th segment. A segment is unmapped and truncated to its real
+ * content when it is completed, so only the segment being written ends with unused zero bytes. If the JVM does not allow to unmap
+ * it, a completed segment keeps its zero bytes, a mapped file can not be truncated on Windows.
+ *
+ * @author olivier martin
+ */
+public class SegmentedTraceOutput extends TraceOutput {
+
+  /** a sequence number is written with at least 6 digits and read with at most 9, so it fits in an int */
+  private static final int MIN_SEQUENCE_DIGITS = 6;
+  private static final int MAX_SEQUENCE_DIGITS = 9;
+
+  private static boolean unmapFailureReported;
+
+  private final File        directory;
+  private final String      prefix;
+  private final String      suffix;
+  private final long        segmentSize;
+  private final long        segmentDurationInNanos;
+  private final int         maxSegments;
+  private final byte[]      fileHeader;
+  private final Deque<File> segments = new ArrayDeque<>();
+
+  /** segments of previous runs, the first ones of the segments */
+  private int              previousRunsSegments;
+  private long             previousRunsBytes;
+  private int              sequence;
+  private RandomAccessFile file;
+  private MappedByteBuffer mappedBuffer;
+  private long             segmentStartTime;
+
+  /**
+   * @param filePath                 the path of the output file used to name segments
+   * @param segmentSize              the size of a segment in bytes
+   * @param segmentDurationInMinutes the time after which a new segment is started, 0 to only rotate on size
+   * @param maxSegments              the maximum number of segments kept on disk, 0 to keep all of them
+   * @param fileHeader               bytes written at the beginning of each segment
+   */
+  public SegmentedTraceOutput(String filePath, long segmentSize, long segmentDurationInMinutes, int maxSegments, byte[] fileHeader) {
+    File outputFile = new File(filePath).getAbsoluteFile();
+    this.directory = outputFile.getParentFile();
+    String name = outputFile.getName();
+    int extensionIndex = name.lastIndexOf('.');
+    this.prefix = (extensionIndex > 0 ? name.substring(0, extensionIndex) : name) + ".";
+    this.suffix = extensionIndex > 0 ? name.substring(extensionIndex) : "";
+    this.segmentSize = segmentSize;
+    this.segmentDurationInNanos = TimeUnit.MINUTES.toNanos(segmentDurationInMinutes);
+    this.maxSegments = maxSegments;
+    this.fileHeader = fileHeader;
+  }
+
+  @Override public void open() throws IOException {
+    // segments from a previous run count in the segments kept on disk
+    File[] existingSegments = directory.listFiles(new FilenameFilter() {
+      @Override public boolean accept(File dir, String name) {
+        return sequenceOf(name) >= 0;
+      }
+    });
+    if (existingSegments != null) {
+      // by sequence number, names of segments after the 999999th one are longer
+      Arrays.sort(existingSegments, new Comparator<File>() {
+        @Override public int compare(File segment1, File segment2) {
+          return Integer.compare(sequenceOf(segment1.getName()), sequenceOf(segment2.getName()));
+        }
+      });
+      for (File existingSegment : existingSegments) {
+        segments.add(existingSegment);
+        sequence = Math.max(sequence, sequenceOf(existingSegment.getName()));
+        previousRunsBytes += existingSegment.length();
+      }
+      previousRunsSegments = existingSegments.length;
+    }
+    startSegment(segmentSize);
+  }
+
+  @Override public void write(byte[] content) throws IOException {
+    if (content.length > mappedBuffer.remaining() || isSegmentExpired()) {
+      completeSegment();
+      startSegment(Math.max(segmentSize, fileHeader.length + content.length));
+    }
+    mappedBuffer.put(content);
+  }
+
+  @Override public void flush() throws IOException {
+    if (isSegmentExpired()) {
+      completeSegment();
+      startSegment(segmentSize);
+    }
+  }
+
+  @Override public void close() throws IOException {
+    completeSegment();
+  }
+
+  /**
+   * Delete the oldest segment, the segment being written is never deleted.
+   */
+  @Override public long evictOldest() {
+    if (segments.size() <= 1) {
+      return 0;
+    }
+    return deleteOldest();
+  }
+
+  @Override public long previousRunsBytes() {
+    return previousRunsBytes;
+  }
+
+  /**
+   * @return the number of bytes freed, 0 if the segment could not be deleted
+   */
+  private long deleteOldest() {
+    File oldest = segments.poll();
+    long length = oldest.length();
+    if (previousRunsSegments > 0) {
+      previousRunsSegments--;
+      previousRunsBytes = Math.max(0, previousRunsBytes - length);
+    }
+    if (!oldest.delete()) {
+      System.err.println("Failed to delete segment " + oldest);
+      return 0;
+    }
+    return length;
+  }
+
+  private boolean isSegmentExpired() {
+    return segmentDurationInNanos > 0 && mappedBuffer.position() > fileHeader.length && System.nanoTime() - segmentStartTime >= segmentDurationInNanos;
+  }
+
+  private void startSegment(long size) throws IOException {
+    sequence++;
+    File segment = new File(directory, prefix + String.format("%0" + MIN_SEQUENCE_DIGITS + "d", sequence) + suffix);
+    segments.add(segment);
+    while (maxSegments > 0 && segments.size() > maxSegments) {
+      deleteOldest();
+    }
+    file = new RandomAccessFile(segment, "rw");
+    mappedBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    mappedBuffer.put(fileHeader);
+    segmentStartTime = System.nanoTime();
+  }
+
+  private void completeSegment() throws IOException {
+    if (file != null) {
+      int length = mappedBuffer.position();
+      boolean unmapped = unmap(mappedBuffer);
+      mappedBuffer = null;
+      if (unmapped) {
+        file.getChannel().truncate(length);
+      }
+      file.close();
+      file = null;
+    }
+  }
+
+  /**
+   * Release the mapping of a buffer now instead of when it is garbage collected, the buffer must not be used after. The JVM has no API
+   * for it: the cleaner of the buffer is called through <code>sun.misc.Unsafe.invokeCleaner</code> since Java 9, or through the
+   * <code>cleaner()</code> method of the buffer before.
+   *
+   * @return false if the buffer could not be unmapped
+   */
+  private static boolean unmap(MappedByteBuffer buffer) {
+    try {
+      try {
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        invokeCleaner.invoke(theUnsafe.get(null), buffer);
+      } catch (NoSuchMethodException e) {
+        Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+        cleanerMethod.setAccessible(true);
+        Object cleaner = cleanerMethod.invoke(buffer);
+        if (cleaner != null) {
+          cleaner.getClass().getMethod("clean").invoke(cleaner);
+        }
+      }
+      return true;
+    } catch (Exception e) {
+      if (!unmapFailureReported) {
+        unmapFailureReported = true;
+        System.err.println("Completed segments are not truncated, they can not be unmapped: " + e);
+      }
+      return false;
+    }
+  }
+
+  /**
+   * @return the sequence number of a segment file name, -1 if it is not the name of a segment, for example the output file itself
+   */
+  private int sequenceOf(String fileName) {
+    int digits = fileName.length() - prefix.length() - suffix.length();
+    if (digits < MIN_SEQUENCE_DIGITS || digits > MAX_SEQUENCE_DIGITS || !fileName.startsWith(prefix) || !fileName.endsWith(suffix)) {
+      return -1;
+    }
+    int sequence = 0;
+    for (int i = prefix.length(); i < prefix.length() + digits; i++) {
+      char c = fileName.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      sequence = sequence * 10 + c - '0';
+    }
+    return sequence;
+  }
+}
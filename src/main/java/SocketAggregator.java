@@ -1,39 +1,296 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.Properties;
-
-import org.kevoree.library.nanohttp.NanoHTTPD;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Class listening on socket to aggregate results locally.
+ * Server collecting the results of many JVMs on a host, so they do not each write their own files. Agents configured with the option
+ * <code>$aggregatorAddress</code> send their results with a {@link SocketTraceOutput}, the aggregator stores them in a
+ * {@link TraceStore} partitioned by time, where the results of each JVM, named by its source name, are kept apart.
+ * <p>
+ * One thread serves all connections with a selector. A connection sends frames made of the length of the rest of the frame as an int,
+ * a type and a payload:
+ * <ul>
+ * <li>{@link #HELLO}, first frame of a connection: the version of the protocol as an int, the source name and the file name in modified
+ * UTF-8, then the header of the file</li>
+ * <li>{@link #DICTIONARY}: lines of the dictionary. The first one of a connection is the whole dictionary</li>
+ * <li>{@link #RECORDS}: complete results</li>
+ * </ul>
+ * An incomplete frame received before the connection is lost is ignored, the agent sends it again when it connects again.
  *
  * @author olivier martin
  */
-public class SocketAggregator extends NanoHTTPD {
+public class SocketAggregator implements Runnable {
+
+  public static final int DEFAULT_PORT = 7999;
+
+  static final int  PROTOCOL_VERSION  = 1;
+  static final int  FRAME_HEADER_SIZE = 5;
+  static final byte HELLO             = 1;
+  static final byte DICTIONARY        = 2;
+  static final byte RECORDS           = 3;
+
+  private static final int BUFFER_SIZE    = 64 * 1024;
+  private static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
 
-  public SocketAggregator() throws IOException {
-    super(7999);
+  private final TraceStore          store;
+  private final Selector            selector;
+  private final ServerSocketChannel serverChannel;
+  private final CountDownLatch      stopped = new CountDownLatch(1);
+  private volatile boolean          closed;
+
+  private static class Connection {
+    final SocketChannel channel;
+    ByteBuffer          in = ByteBuffer.allocate(BUFFER_SIZE);
+    TraceStore.Source   source;
+    /** the first dictionary frame of a connection replaces the dictionary */
+    boolean             wholeDictionary = true;
+    long                recordFrames;
+
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
   }
 
-  @Override
-  public NanoHTTPD.Response serve(String uri, String method, Properties header, Properties parms, Properties files, InputStream body) {
-    return new NanoHTTPD.Response(HTTP_OK, MIME_PLAINTEXT, "Listening for stats...");
+  /**
+   * @param address the address to listen on
+   * @param store   the store of results
+   */
+  public SocketAggregator(InetSocketAddress address, TraceStore store) throws IOException {
+    this.store = store;
+    selector = Selector.open();
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.socket().setReuseAddress(true);
+    serverChannel.socket().bind(address);
+    serverChannel.configureBlocking(false);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
   }
 
+  public int port() {
+    return serverChannel.socket().getLocalPort();
+  }
 
-  public static void main(String[] args) {
+  /**
+   * Serve connections until {@link #close()} is called.
+   */
+  @Override public void run() {
     try {
-      SocketAggregator socketAggregator = new SocketAggregator();
-      while (true) {
-        try {
-          Thread.sleep(100);
-        } catch (InterruptedException e) {
-          e.printStackTrace();
-          System.exit(0);
+      while (!closed) {
+        selector.select(1000);
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+          } else if (key.isReadable()) {
+            read(key);
+          }
         }
+        store.flush();
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      for (SelectionKey key : selector.keys()) {
+        if (key.attachment() != null) {
+          disconnect(key);
+        }
+      }
+      try {
+        store.close();
+        serverChannel.close();
+        selector.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      stopped.countDown();
+    }
+  }
+
+  /**
+   * Stop serving and wait until all connections and the files of all sources are closed.
+   */
+  public void close() throws InterruptedException {
+    closed = true;
+    selector.wakeup();
+    stopped.await(5, TimeUnit.SECONDS);
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = serverChannel.accept();
+    if (channel == null) {
+      return;
+    }
+    channel.configureBlocking(false);
+    channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+  }
+
+  /**
+   * Read what is available and handle complete frames.
+   */
+  private void read(SelectionKey key) {
+    Connection connection = (Connection) key.attachment();
+    try {
+      if (connection.channel.read(connection.in) < 0) {
+        disconnect(key);
+        return;
+      }
+      ByteBuffer in = connection.in;
+      in.flip();
+      int needed = 0;
+      while (in.remaining() >= 4) {
+        int length = in.getInt(in.position());
+        if (length < 1 || length > MAX_FRAME_SIZE) {
+          throw new IOException("Invalid frame length " + length);
+        }
+        if (in.remaining() < 4 + length) {
+          needed = 4 + length;
+          break;
+        }
+        in.getInt();
+        byte type = in.get();
+        byte[] payload = new byte[length - 1];
+        in.get(payload);
+        handle(connection, type, payload);
+      }
+      in.compact();
+      if (needed > in.capacity()) {
+        in.flip();
+        connection.in = ByteBuffer.allocate(needed).put(in);
+      } else if (in.position() == 0 && in.capacity() > BUFFER_SIZE) {
+        connection.in = ByteBuffer.allocate(BUFFER_SIZE);
+      }
+    } catch (IOException e) {
+      System.err.println("SocketAggregator closes connection from " + connection.channel.socket().getRemoteSocketAddress() + ": " + e);
+      disconnect(key);
+    }
+  }
+
+  private void handle(Connection connection, byte type, byte[] payload) throws IOException {
+    if (type == HELLO) {
+      if (connection.source != null) {
+        throw new IOException("Unexpected hello frame");
       }
+      hello(connection, payload);
+      return;
+    }
+    TraceStore.Source source = connection.source;
+    if (source == null) {
+      throw new IOException("Frame of type " + type + " before hello frame");
+    }
+    switch (type) {
+      case DICTIONARY:
+        // method ids are only valid in the JVM of the source, the dictionary is replaced by the one of the connection
+        store.dictionary(source, payload, connection.wholeDictionary);
+        connection.wholeDictionary = false;
+        break;
+      case RECORDS:
+        store.append(source, payload, System.currentTimeMillis());
+        connection.recordFrames++;
+        break;
+      default:
+        throw new IOException("Unknown frame type " + type);
+    }
+  }
+
+  private void hello(Connection connection, byte[] payload) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+    int version = in.readInt();
+    if (version != PROTOCOL_VERSION) {
+      throw new IOException("Unsupported protocol version " + version);
+    }
+    String name = in.readUTF();
+    String fileName = in.readUTF();
+    byte[] fileHeader = new byte[in.available()];
+    in.readFully(fileHeader);
+    connection.source = store.source(name, fileName, fileHeader);
+    System.out.println("SocketAggregator receives results of " + name + " from " + connection.channel.socket().getRemoteSocketAddress());
+  }
+
+  /**
+   * @return the name with only letters, digits and '.', '_', '@', '-', which can not name a parent directory
+   */
+  static String safeFileName(String name) {
+    String safeName = name.replaceAll("[^A-Za-z0-9._@-]", "_");
+    return safeName.isEmpty() || safeName.charAt(0) == '.' ? "_" + safeName : safeName;
+  }
+
+  private void disconnect(SelectionKey key) {
+    Connection connection = (Connection) key.attachment();
+    key.cancel();
+    try {
+      connection.channel.close();
+    } catch (IOException e) {
+      // the connection is closed anyway
+    }
+    TraceStore.Source source = connection.source;
+    if (source != null) {
+      System.out.println("SocketAggregator received " + connection.recordFrames + " frames of results from " + source.name);
+      connection.source = null;
+      try {
+        store.release(source);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  public static void main(String[] args) {
+    if (args.length > 3 || args.length > 0 && args[0].startsWith("-")) {
+      System.out.println("Usage: java -cp <PATH_TO_JAR> SocketAggregator [[<HOST>:]<PORT>] [<DIRECTORY>] [<PARTITION IN MINUTES>]\n"
+          + "Stores results sent by agents configured with $aggregatorAddress=<HOST>:<PORT> in segments of the directory, one per period\n"
+          + "of time, queried with TraceStore. Listens on localhost:" + DEFAULT_PORT + ", stores results in the current directory and\n"
+          + "starts a segment every " + TraceStore.DEFAULT_PARTITION_IN_MINUTES + " minutes by default");
+      return;
+    }
+    try {
+      InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), DEFAULT_PORT);
+      if (args.length > 0) {
+        address = parseAddress(args[0], address);
+      }
+      TraceStore store = new TraceStore(new File(args.length > 1 ? args[1] : "."),
+          args.length > 2 ? Long.parseLong(args[2]) : TraceStore.DEFAULT_PARTITION_IN_MINUTES);
+      final SocketAggregator socketAggregator = new SocketAggregator(address, store);
+      Runtime.getRuntime().addShutdownHook(new Thread("SocketAggregator-shutdown") {
+        @Override public void run() {
+          try {
+            socketAggregator.close();
+          } catch (InterruptedException e) {
+            // the JVM stops anyway
+          }
+        }
+      });
+      System.out.println("SocketAggregator listening on " + address);
+      socketAggregator.run();
     } catch (IOException e) {
       e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  /**
+   * @param address <code>&lt;HOST&gt;:&lt;PORT&gt;</code> or <code>&lt;PORT&gt;</code>
+   * @return the address, on the host of the default address if it is not given
+   */
+  static InetSocketAddress parseAddress(String address, InetSocketAddress defaultAddress) {
+    int separator = address.lastIndexOf(':');
+    if (separator < 0) {
+      return new InetSocketAddress(defaultAddress.getAddress(), Integer.parseInt(address));
     }
+    return new InetSocketAddress(address.substring(0, separator), Integer.parseInt(address.substring(separator + 1)));
   }
 }
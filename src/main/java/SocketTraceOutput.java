@@ -0,0 +1,249 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Send results to a {@link SocketAggregator} instead of writing them to a file. Results written between two flushes of the
+ * {@link TraceWriter} are sent in one frame, frames waiting to be sent are kept in a buffer of a bounded size and results which do not
+ * fit in the buffer are dropped and counted.
+ * <p>
+ * The socket is never blocking, a slow aggregator only fills the buffer. When the connection is lost, the frame being sent is sent
+ * again after the reconnection, the aggregator ignores the incomplete frame it received, but frames written before the connection is
+ * found lost can be lost. The output connects again on flush, waiting twice as long after each failure, from
+ * {@link #MIN_RECONNECT_DELAY_IN_MILLIS} up to {@link #MAX_RECONNECT_DELAY_IN_MILLIS}. After each connection, the hello frame and the
+ * whole dictionary are sent first.
+ *
+ * @author olivier martin
+ */
+public class SocketTraceOutput extends TraceOutput {
+
+  public static final int DEFAULT_BUFFER_SIZE_IN_KILOBYTES = 4096;
+
+  static final long MIN_RECONNECT_DELAY_IN_MILLIS = 100;
+  static final long MAX_RECONNECT_DELAY_IN_MILLIS = 10000;
+
+  private static final int  CONNECT_TIMEOUT_IN_MILLIS = 1000;
+  private static final long CLOSE_TIMEOUT_IN_NANOS    = TimeUnit.SECONDS.toNanos(1);
+  private static final int  MAX_BATCH_SIZE            = 256 * 1024;
+
+  private final InetSocketAddress     address;
+  private final String                sourceName;
+  private final String                fileName;
+  private final byte[]                fileHeader;
+  private final long                  maxBufferedBytes;
+  /** frames waiting to be sent, the first one can be partially sent */
+  private final Deque<Frame>          frames     = new ArrayDeque<>();
+  /** the whole dictionary, sent again after each connection */
+  private final ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+  private final ByteBuffer            batch      = ByteBuffer.allocate(MAX_BATCH_SIZE);
+  private final ByteBuffer            closeCheck = ByteBuffer.allocate(1);
+  /** payload of the hello frame */
+  private       byte[]                hello;
+  private       int                   batchRecords;
+  private       long                  bufferedBytes;
+  private       SocketChannel         channel;
+  private       long                  reconnectDelayInMillis = MIN_RECONNECT_DELAY_IN_MILLIS;
+  private       long                  nextConnectTime;
+  private       long                  dropped;
+  private       long                  connections;
+
+  private static class Frame {
+    final ByteBuffer bytes;
+    final byte       type;
+    /** number of results in the frame */
+    final int        records;
+
+    Frame(byte type, byte[] payload, int offset, int length, int records) {
+      this.type = type;
+      this.records = records;
+      bytes = ByteBuffer.allocate(SocketAggregator.FRAME_HEADER_SIZE + length);
+      bytes.putInt(1 + length).put(type).put(payload, offset, length);
+      bytes.flip();
+    }
+  }
+
+  /**
+   * @param address          the address of the aggregator
+   * @param sourceName       the name of the JVM, results of each source are stored apart by the aggregator
+   * @param fileName         the name of the file storing results in the directory of the source, usually the name of the output file
+   * @param fileHeader       bytes written by the aggregator at the beginning of the file
+   * @param maxBufferedBytes the maximum size of the frames waiting to be sent
+   */
+  public SocketTraceOutput(InetSocketAddress address, String sourceName, String fileName, byte[] fileHeader, long maxBufferedBytes) {
+    this.address = address;
+    this.sourceName = sourceName;
+    this.fileName = fileName;
+    this.fileHeader = fileHeader;
+    this.maxBufferedBytes = maxBufferedBytes;
+  }
+
+  /**
+   * Connect if the aggregator is reachable. Results are buffered until it is.
+   */
+  @Override public void open() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(SocketAggregator.PROTOCOL_VERSION);
+    out.writeUTF(sourceName);
+    out.writeUTF(fileName);
+    out.write(fileHeader);
+    hello = bytes.toByteArray();
+    connect();
+  }
+
+  @Override public void dictionary(byte[] lines) throws IOException {
+    sealBatch();
+    dictionary.write(lines);
+    // lines added while connected are sent in order with results, previous lines are sent on connection
+    if (channel != null) {
+      enqueue(new Frame(SocketAggregator.DICTIONARY, lines, 0, lines.length, 0), true);
+    }
+  }
+
+  @Override public void write(byte[] content) throws IOException {
+    if (content.length > batch.remaining()) {
+      sealBatch();
+      if (content.length > batch.capacity()) {
+        enqueue(new Frame(SocketAggregator.RECORDS, content, 0, content.length, 1), false);
+        return;
+      }
+    }
+    batch.put(content);
+    batchRecords++;
+  }
+
+  @Override public void flush() throws IOException {
+    sealBatch();
+    if (channel == null && System.nanoTime() - nextConnectTime >= 0) {
+      connect();
+    }
+    send();
+    System.setProperty("JavaPerfAgent.aggregator.connected", String.valueOf(channel != null));
+  }
+
+  /**
+   * Send the frames waiting for at most {@link #CLOSE_TIMEOUT_IN_NANOS}, then close the connection.
+   */
+  @Override public void close() throws IOException {
+    flush();
+    long start = System.nanoTime();
+    while (channel != null && !frames.isEmpty() && System.nanoTime() - start < CLOSE_TIMEOUT_IN_NANOS) {
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+      send();
+    }
+    for (Frame frame : frames) {
+      dropped(frame.records);
+    }
+    frames.clear();
+    disconnect();
+  }
+
+  /**
+   * @return the number of results dropped because the buffer was full
+   */
+  public long dropped() {
+    return dropped;
+  }
+
+  private void sealBatch() {
+    if (batch.position() > 0) {
+      enqueue(new Frame(SocketAggregator.RECORDS, batch.array(), 0, batch.position(), batchRecords), false);
+      batch.clear();
+      batchRecords = 0;
+    }
+  }
+
+  /**
+   * @param force true to keep the frame even if the buffer is full, for the dictionary which results depend on
+   */
+  private void enqueue(Frame frame, boolean force) {
+    if (!force && bufferedBytes + frame.bytes.limit() > maxBufferedBytes) {
+      dropped(frame.records);
+      return;
+    }
+    frames.addLast(frame);
+    bufferedBytes += frame.bytes.limit();
+  }
+
+  private void dropped(int records) {
+    dropped += records;
+    System.setProperty("JavaPerfAgent.aggregator.dropped", String.valueOf(dropped));
+  }
+
+  private void connect() {
+    try {
+      channel = SocketChannel.open();
+      channel.socket().connect(address, CONNECT_TIMEOUT_IN_MILLIS);
+      channel.socket().setTcpNoDelay(true);
+      channel.configureBlocking(false);
+    } catch (IOException e) {
+      disconnect();
+      return;
+    }
+    connections++;
+    reconnectDelayInMillis = MIN_RECONNECT_DELAY_IN_MILLIS;
+    System.setProperty("JavaPerfAgent.aggregator.connections", String.valueOf(connections));
+    // the aggregator starts a new dictionary for each connection, lines waiting to be sent are in the whole dictionary
+    for (Iterator<Frame> i = frames.iterator(); i.hasNext(); ) {
+      Frame frame = i.next();
+      if (frame.type != SocketAggregator.RECORDS) {
+        bufferedBytes -= frame.bytes.limit();
+        i.remove();
+      }
+    }
+    byte[] lines = dictionary.toByteArray();
+    Frame dictionaryFrame = new Frame(SocketAggregator.DICTIONARY, lines, 0, lines.length, 0);
+    frames.addFirst(dictionaryFrame);
+    frames.addFirst(new Frame(SocketAggregator.HELLO, hello, 0, hello.length, 0));
+    bufferedBytes += dictionaryFrame.bytes.limit() + SocketAggregator.FRAME_HEADER_SIZE + hello.length;
+  }
+
+  /**
+   * Write the frames waiting until the socket does not accept more bytes.
+   */
+  private void send() {
+    try {
+      // the aggregator never sends data, a read only tells if it closed the connection, before frames are written to a lost connection
+      if (channel != null && channel.read(closeCheck) < 0) {
+        throw new EOFException("Connection closed by the aggregator");
+      }
+      while (channel != null && !frames.isEmpty()) {
+        ByteBuffer bytes = frames.peekFirst().bytes;
+        channel.write(bytes);
+        if (bytes.hasRemaining()) {
+          return;
+        }
+        frames.pollFirst();
+        bufferedBytes -= bytes.limit();
+      }
+    } catch (IOException e) {
+      disconnect();
+    }
+  }
+
+  private void disconnect() {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // the connection is lost anyway
+      }
+      channel = null;
+      nextConnectTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(reconnectDelayInMillis);
+      reconnectDelayInMillis = Math.min(reconnectDelayInMillis * 2, MAX_RECONNECT_DELAY_IN_MILLIS);
+    }
+    // the aggregator ignores the frame it received partially, it is sent again
+    if (!frames.isEmpty()) {
+      frames.peekFirst().bytes.rewind();
+    }
+  }
+}
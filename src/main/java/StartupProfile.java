@@ -0,0 +1,216 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timeline of the classes loaded during the first seconds of the agent, to find what slows down the startup of the application: when
+ * each class was loaded, the time spent weaving it, the time spent in its static initializer and when its first tracked method or
+ * constructor was called. Static initializers of tracked classes are tracked while the profile is running. Static initializers
+ * running in a root call which is not sampled are not measured.
+ * <p>
+ * The timeline is written when the profile ends, or when the JVM stops, into a CSV file named after the output file, for example
+ * <code>/tmp/stats.json.startup.csv</code>. There is one line per class in the order of loading, times are in milliseconds since the
+ * start of the JVM, empty when unknown:
+ * <pre>
+ * class,loader,loadedAtMillis,weaveMillis,clinitMillis,firstCallAtMillis
+ * </pre>
+ * For example <code>sort -t, -k5 -g -r</code> lists the slowest static initializers first.
+ *
+ * @author olivier martin
+ */
+public class StartupProfile {
+
+  static final String FILE_SUFFIX = ".startup.csv";
+
+  private static long             durationInSeconds = 0;
+  private static volatile boolean active            = false;
+  private static String           filePath;
+  /** value of {@link System#nanoTime()} when the JVM started */
+  private static long             jvmStartNanos;
+
+  private static final Queue<ClassStartup>         loadOrder     = new ConcurrentLinkedQueue<>();
+  /** classes loaded since the start of the profile, a class loaded by several loaders has one entry per loader */
+  private static final Map<ClassKey, ClassStartup> classes       = new ConcurrentHashMap<>();
+  /** methods called at least once since the start of the profile, by id */
+  private static volatile boolean[]                called        = new boolean[1024];
+  /** class of the methods and constructors woven since the start of the profile, by id */
+  private static volatile ClassStartup[]           methodClasses = new ClassStartup[1024];
+  /** class of the static initializers woven since the start of the profile, by id */
+  private static volatile ClassStartup[]           clinitClasses = new ClassStartup[1024];
+
+  private static class ClassStartup {
+    final String  name;
+    final String  loader;
+    final long    loadedAtNanos;
+    volatile long weaveNanos       = -1;
+    volatile long clinitNanos      = -1;
+    volatile long firstCallAtNanos = -1;
+
+    ClassStartup(String name, String loader, long loadedAtNanos) {
+      this.name = name;
+      this.loader = loader;
+      this.loadedAtNanos = loadedAtNanos;
+    }
+  }
+
+  private static class ClassKey {
+    final ClassLoader loader;
+    final String      name;
+
+    ClassKey(ClassLoader loader, String name) {
+      this.loader = loader;
+      this.name = name;
+    }
+
+    @Override public boolean equals(Object o) {
+      return o instanceof ClassKey && ((ClassKey) o).loader == loader && ((ClassKey) o).name.equals(name);
+    }
+
+    @Override public int hashCode() {
+      return 31 * System.identityHashCode(loader) + name.hashCode();
+    }
+  }
+
+  /**
+   * Start the profile, it ends after {@link #durationInSeconds()}.
+   *
+   * @param outputFilePath the output file of the agent
+   */
+  static void start(ScheduledExecutorService scheduler, String outputFilePath) {
+    filePath = outputFilePath + FILE_SUFFIX;
+    jvmStartNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(ManagementFactory.getRuntimeMXBean().getUptime());
+    active = true;
+    scheduler.schedule(new Runnable() {
+      @Override public void run() {
+        stop();
+      }
+    }, durationInSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * End the profile and write the timeline, nothing is done if the profile is not running.
+   */
+  static synchronized void stop() {
+    if (!active) {
+      return;
+    }
+    active = false;
+    try (PrintWriter writer = new PrintWriter(new FileWriter(filePath))) {
+      writer.println("class,loader,loadedAtMillis,weaveMillis,clinitMillis,firstCallAtMillis");
+      for (ClassStartup c : loadOrder) {
+        writer.println(c.name + "," + c.loader + "," + millis(c.loadedAtNanos - jvmStartNanos) + "," + millis(c.weaveNanos) + ","
+            + millis(c.clinitNanos) + "," + (c.firstCallAtNanos < 0 ? "" : millis(c.firstCallAtNanos - jvmStartNanos)));
+      }
+      System.setProperty("JavaPerfAgent.startupProfile", filePath);
+      System.out.println("JavaPerfAgent startup profile of " + loadOrder.size() + " classes written to " + filePath);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    // class loaders are not kept once the profile is written
+    classes.clear();
+  }
+
+  private static String millis(long nanos) {
+    return nanos < 0 ? "" : String.format(Locale.ROOT, "%.3f", (double) nanos / 1000000);
+  }
+
+  static boolean isActive() {
+    return active;
+  }
+
+  /**
+   * Called when a class is loaded, before it is woven.
+   */
+  static void classLoaded(String className, ClassLoader loader) {
+    ClassStartup c = new ClassStartup(className, loader == null ? "bootstrap" : loader.getClass().getName(), System.nanoTime());
+    loadOrder.add(c);
+    classes.put(new ClassKey(loader, className), c);
+  }
+
+  static void classWoven(ClassLoader loader, String className, long durationInNanos) {
+    ClassStartup c = classes.get(new ClassKey(loader, className));
+    if (c != null) {
+      c.weaveNanos = durationInNanos;
+    }
+  }
+
+  /**
+   * Called by the weavers when a method of a class is woven. Ids are shared by the classes of the same name, a call is counted for
+   * the last one woven.
+   *
+   * @param staticInitializer true if the method is the static initializer of the class
+   */
+  static synchronized void methodWoven(ClassLoader loader, String className, int methodId, boolean staticInitializer) {
+    if (!active) {
+      return;
+    }
+    ClassStartup c = classes.get(new ClassKey(loader, className));
+    if (c == null) {
+      return;
+    }
+    if (staticInitializer) {
+      clinitClasses = put(clinitClasses, methodId, c);
+    } else {
+      methodClasses = put(methodClasses, methodId, c);
+    }
+  }
+
+  private static ClassStartup[] put(ClassStartup[] array, int index, ClassStartup c) {
+    if (index >= array.length) {
+      array = Arrays.copyOf(array, Math.max(array.length * 2, index + 1));
+    }
+    array[index] = c;
+    return array;
+  }
+
+  /**
+   * Called by {@link PerfAgentMonitor} when a tracked call starts.
+   */
+  static void called(int methodId) {
+    boolean[] called = StartupProfile.called;
+    if (methodId >= called.length || !called[methodId]) {
+      firstCall(methodId);
+    }
+  }
+
+  private static synchronized void firstCall(int methodId) {
+    if (methodId >= called.length) {
+      called = Arrays.copyOf(called, Math.max(called.length * 2, methodId + 1));
+    }
+    if (called[methodId]) {
+      return;
+    }
+    called[methodId] = true;
+    ClassStartup c = methodId < methodClasses.length ? methodClasses[methodId] : null;
+    if (c != null && c.firstCallAtNanos < 0) {
+      c.firstCallAtNanos = System.nanoTime();
+    }
+  }
+
+  /**
+   * Called by {@link PerfAgentMonitor} when a tracked call ends.
+   */
+  static void ended(int methodId, long durationInNanos) {
+    ClassStartup[] clinitClasses = StartupProfile.clinitClasses;
+    if (methodId < clinitClasses.length && clinitClasses[methodId] != null) {
+      clinitClasses[methodId].clinitNanos = durationInNanos;
+    }
+  }
+
+  public static long durationInSeconds() {
+    return durationInSeconds;
+  }
+
+  public static void durationInSeconds(long value) {
+    durationInSeconds = value;
+  }
+}
@@ -0,0 +1,80 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Convert a file written with the binary format to the JSON format read by {@link PerfAgentGUI} and {@link WebGUI}.
+ *
+ * @author olivier martin
+ */
+public class TraceConverter {
+
+  public static void main(String[] args) {
+    if (args.length < 2) {
+      System.out.println("Usage: TraceConverter <BINARY FILE> <DICTIONARY FILE> [<JSON FILE>]\n"
+          + "Converts results written with $outputFormat=binary to JSON. The dictionary is the file with the '.methods' suffix written\n"
+          + "next to the output file, the binary file can be compressed with $compressOutput. JSON is written to the standard output if no JSON file is given.");
+      System.exit(9);
+    }
+    try {
+      loadDictionary(args[1]);
+      try (InputStream in = new BufferedInputStream(CompressedTraceInput.open(new File(args[0])));
+          OutputStream out = args.length > 2 ? new BufferedOutputStream(new FileOutputStream(args[2])) : System.out) {
+        int nbRecords = convert(in, out);
+        out.flush();
+        System.err.println(nbRecords + " root calls converted");
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+      System.exit(8);
+    }
+  }
+
+  /**
+   * Register methods from the dictionary so they get the same ids as in the JVM which wrote the file.
+   */
+  static void loadDictionary(String dictionaryFilePath) throws IOException {
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(dictionaryFilePath), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int separator = line.indexOf('\t');
+        int id = Integer.parseInt(line.substring(0, separator));
+        if (MethodRegistry.register(line.substring(separator + 1)) != id) {
+          throw new IOException("Unexpected method id " + id + " in dictionary " + dictionaryFilePath);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the number of root calls converted
+   */
+  static int convert(InputStream in, OutputStream out) throws IOException {
+    long probeCostInNanos = BinaryTraceFormat.readHeader(in);
+    if (probeCostInNanos < 0) {
+      throw new IOException("Not a binary result file");
+    }
+    // durations are compensated with the cost measured by the JVM which wrote the file
+    ProbeCalibration.callCostInNanos(probeCostInNanos);
+    out.write(JsonTraceFormat.header(null, probeCostInNanos));
+    JsonTraceFormat jsonFormat = new JsonTraceFormat();
+    ArrayCallStack callStack = new ArrayCallStack();
+    int count = 0;
+    while (BinaryTraceFormat.readRecord(in, callStack)) {
+      byte[] json = jsonFormat.encode(callStack);
+      if (json != null) {
+        out.write(json);
+        count++;
+      }
+    }
+    return count;
+  }
+}
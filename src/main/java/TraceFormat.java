@@ -0,0 +1,36 @@
+/**
+ * Format used to write the calls recorded for a root call.
+ *
+ * @author olivier martin
+ */
+public abstract class TraceFormat {
+
+  /**
+   * Encode calls recorded for a root call.
+   *
+   * @return the content to write or null if there is nothing to write
+   */
+  public abstract byte[] encode(CallStack callStack);
+
+  /**
+   * @return bytes written at the beginning of each output file
+   */
+  public byte[] fileHeader() {
+    return new byte[0];
+  }
+
+  /**
+   * @return the start of {@link #fileHeader()} identifying the format, results are only appended to a file starting with it
+   */
+  public byte[] signature() {
+    return new byte[0];
+  }
+
+  /**
+   * @return content written when the cost of the probes is measured again, see {@link ProbeCalibration}. Null if the format only has
+   * a header at the beginning of files.
+   */
+  public byte[] headerUpdate() {
+    return null;
+  }
+}
@@ -0,0 +1,50 @@
+import java.io.IOException;
+
+/**
+ * Destination of the results written by the {@link TraceWriter}. Methods are only called from the writer thread.
+ *
+ * @author olivier martin
+ */
+public abstract class TraceOutput {
+
+  /**
+   * Open the output.
+   */
+  public abstract void open() throws IOException;
+
+  /**
+   * Write one result. A result is never split by the output.
+   */
+  public abstract void write(byte[] content) throws IOException;
+
+  /**
+   * Called with the lines added to the dictionary of methods, before the results using them are written. Outputs writing results
+   * away from the dictionary file send them along with results.
+   */
+  public void dictionary(byte[] lines) throws IOException {
+  }
+
+  /**
+   * Delete the oldest completed part of the output to free space for new results, see {@link OutputGovernor}.
+   *
+   * @return the number of bytes freed, 0 if nothing can be deleted
+   */
+  public long evictOldest() throws IOException {
+    return 0;
+  }
+
+  /**
+   * @return the number of bytes of the parts of the output left by previous runs, which {@link #evictOldest()} deletes first. They are
+   * not part of the bytes written by this run
+   */
+  public long previousRunsBytes() {
+    return 0;
+  }
+
+  /**
+   * Called once all results queued are written.
+   */
+  public abstract void flush() throws IOException;
+
+  public abstract void close() throws IOException;
+}
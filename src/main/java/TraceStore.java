@@ -0,0 +1,759 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only store of the results received by the {@link SocketAggregator}, partitioned by time so that queries only read the
+ * segments of the period they ask for, for example the root calls of a method slower than 100ms between 10:00 and 10:30:
+ * <pre>
+ * java -cp &lt;PATH_TO_JAR&gt; TraceStore /var/traces com.test.Test.get 100 2026-10-18T10:00 2026-10-18T10:30
+ * </pre>
+ * A segment is a directory named after the start of its period in UTC, for example <code>20261018-1000</code>. Results of each JVM
+ * received during the period are appended to a file in the directory of the JVM, named like the output file of the agent, with its
+ * header and its dictionary next to it, so each file can be read as if the agent wrote it. Results are stored at the time they are
+ * received, the agent sends them shortly after the root call ends. The segment also contains:
+ * <ul>
+ * <li><code>roots</code>: names of the root methods, without parameters, one per line. The line number is the id of the root</li>
+ * <li><code>sources</code>: names of the JVMs and paths of their files, separated by a tab. The line number is the id of the source</li>
+ * <li><code>index</code>: one entry of {@link #ENTRY_SIZE} bytes per root call, in the order they are received: the time in
+ * milliseconds, the id of the source, the id of the root, the duration in nanoseconds, the offset and the size of the root call in
+ * the file of the source</li>
+ * <li><code>postings</code>, written when the segment is closed: for each root and duration bucket, the numbers of its entries in the
+ * index. Bucket b holds durations from 2^b to 2^(b+1) microseconds. Segments without postings are read by scanning their index</li>
+ * </ul>
+ * Lines of the JSON format starting with {@link JsonTraceFormat#META_LINE_PREFIX} are stored but not indexed.
+ *
+ * @author olivier martin
+ */
+public class TraceStore {
+
+  public static final long DEFAULT_PARTITION_IN_MINUTES = 60;
+
+  static final int ENTRY_SIZE = 36;
+
+  /** the dictionary of a source is a list indexed by method id, ids of a JVM are allocated from 0 */
+  static final int MAX_METHOD_ID = 1 << 20;
+
+  private static final int    MAX_ROOT_PREFIX = 16 * 1024;
+  private static final String ROOTS           = "roots";
+  private static final String SOURCES         = "sources";
+  private static final String INDEX           = "index";
+  private static final String POSTINGS        = "postings";
+  private static final String HEADER          = JsonTraceFormat.META_LINE_PREFIX + "header\"";
+
+  private final File                directory;
+  private final long                partitionInMillis;
+  /** sources with at least one connection, by the name of their directory */
+  private final Map<String, Source> sources = new HashMap<>();
+  private       Segment             segment;
+  private       boolean             written;
+
+  /**
+   * Results of a JVM.
+   */
+  static class Source {
+    final String       name;
+    final String       directoryName;
+    final String       fileName;
+    final boolean      binary;
+    /** header of the next files, the last header line received for the JSON format */
+    byte[]             fileHeader;
+    /** method names by id, from the dictionary of the JVM */
+    final List<String> methods = new ArrayList<>();
+    int                connections;
+
+    /** files of the source in the current segment */
+    Segment            segment;
+    int                sourceId;
+    FileTraceOutput    output;
+    long               outputSize;
+    FileChannel        dictionaryChannel;
+
+    Source(String name, String fileName, byte[] fileHeader) {
+      this.name = name;
+      this.directoryName = SocketAggregator.safeFileName(name);
+      this.fileName = SocketAggregator.safeFileName(fileName);
+      this.fileHeader = fileHeader;
+      this.binary = fileHeader.length >= BinaryTraceFormat.MAGIC.length
+          && Arrays.equals(Arrays.copyOf(fileHeader, BinaryTraceFormat.MAGIC.length), BinaryTraceFormat.MAGIC);
+    }
+
+    byte[] dictionary() {
+      StringBuilder sb = new StringBuilder();
+      for (int id = 0; id < methods.size(); id++) {
+        sb.append(id).append('\t').append(methods.get(id)).append('\n');
+      }
+      return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
+  /**
+   * @param directory          the directory of the segments
+   * @param partitionInMinutes the period of time of a segment
+   */
+  public TraceStore(File directory, long partitionInMinutes) {
+    this.directory = directory;
+    this.partitionInMillis = TimeUnit.MINUTES.toMillis(partitionInMinutes);
+  }
+
+  /**
+   * @return the source with the given name, the same source is returned for all the connections of a JVM
+   */
+  Source source(String name, String fileName, byte[] fileHeader) {
+    String directoryName = SocketAggregator.safeFileName(name);
+    Source source = sources.get(directoryName);
+    if (source == null) {
+      source = new Source(name, fileName, fileHeader);
+      sources.put(directoryName, source);
+    }
+    source.connections++;
+    return source;
+  }
+
+  /**
+   * Add lines to the dictionary of the source.
+   *
+   * @param whole true if the lines are the whole dictionary, which replaces the current one
+   */
+  void dictionary(Source source, byte[] lines, boolean whole) throws IOException {
+    // lines are checked before the dictionary changes, an invalid frame only closes its connection
+    String[] entries = new String(lines, StandardCharsets.UTF_8).split("\n");
+    int[] ids = new int[entries.length];
+    for (int i = 0; i < entries.length; i++) {
+      ids[i] = entries[i].isEmpty() ? -1 : methodId(entries[i]);
+    }
+    if (whole) {
+      source.methods.clear();
+    }
+    for (int i = 0; i < entries.length; i++) {
+      if (ids[i] >= 0) {
+        while (source.methods.size() <= ids[i]) {
+          source.methods.add(null);
+        }
+        source.methods.set(ids[i], entries[i].substring(entries[i].indexOf('\t') + 1));
+      }
+    }
+    if (source.dictionaryChannel != null) {
+      if (whole) {
+        source.dictionaryChannel.truncate(0);
+      }
+      source.dictionaryChannel.position(source.dictionaryChannel.size());
+      FileTraceOutput.writeFully(source.dictionaryChannel, ByteBuffer.wrap(lines));
+    }
+  }
+
+  /**
+   * Append results of a source to the segment of the given time and index its root calls.
+   *
+   * @param records one or more complete records of the format of the source
+   */
+  void append(Source source, byte[] records, long timeInMillis) throws IOException {
+    if (source.binary) {
+      checkBinaryRecords(records);
+    }
+    Segment segment = segment(timeInMillis);
+    if (source.segment != segment) {
+      closeFiles(source);
+      openFiles(source, segment);
+    }
+    long offset = source.outputSize;
+    source.output.write(records);
+    source.outputSize += records.length;
+    written = true;
+    ByteBuffer buffer = ByteBuffer.wrap(records);
+    while (buffer.hasRemaining()) {
+      int start = buffer.position();
+      if (source.binary) {
+        int size = (int) BinaryTraceFormat.readVarLong(buffer);
+        int end = buffer.position() + size;
+        BinaryTraceFormat.readVarLong(buffer);
+        long methodId = BinaryTraceFormat.readVarLong(buffer);
+        BinaryTraceFormat.readVarLong(buffer);
+        long durationInNanos = BinaryTraceFormat.readVarLong(buffer);
+        String methodName = methodId < source.methods.size() ? source.methods.get((int) methodId) : null;
+        segment.add(timeInMillis, source.sourceId, methodName != null ? rootName(methodName) : "#" + methodId, durationInNanos,
+            offset + start, end - start);
+        buffer.position(end);
+      } else {
+        int end = start;
+        while (end < records.length && records[end] != '\n') {
+          end++;
+        }
+        end = Math.min(end + 1, records.length);
+        // the name and the duration of the root are at the beginning of the line
+        String line = new String(records, start, Math.min(end - start, MAX_ROOT_PREFIX), StandardCharsets.UTF_8);
+        if (line.startsWith(HEADER)) {
+          source.fileHeader = Arrays.copyOfRange(records, start, end);
+        } else if (!line.startsWith(JsonTraceFormat.META_LINE_PREFIX)) {
+          indexJsonRoot(segment, source, line, timeInMillis, offset + start, end - start);
+        }
+        buffer.position(end);
+      }
+    }
+  }
+
+  /**
+   * @return the id of a dictionary line <code>&lt;id&gt;\t&lt;method name&gt;</code>
+   */
+  private static int methodId(String line) throws IOException {
+    int separator = line.indexOf('\t');
+    if (separator <= 0 || separator > String.valueOf(MAX_METHOD_ID).length()) {
+      throw new IOException("Invalid dictionary line " + line);
+    }
+    int id = 0;
+    for (int i = 0; i < separator; i++) {
+      char c = line.charAt(i);
+      if (c < '0' || c > '9') {
+        throw new IOException("Invalid dictionary line " + line);
+      }
+      id = id * 10 + c - '0';
+    }
+    if (id > MAX_METHOD_ID) {
+      throw new IOException("Method id " + id + " over " + MAX_METHOD_ID);
+    }
+    return id;
+  }
+
+  /**
+   * Check that the bytes are complete binary records starting with the fields of their root call, before they are written.
+   */
+  private static void checkBinaryRecords(byte[] records) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(records);
+    while (buffer.hasRemaining()) {
+      long size = BinaryTraceFormat.readVarLong(buffer);
+      if (size <= 0 || size > buffer.remaining()) {
+        throw new EOFException("Truncated record");
+      }
+      ByteBuffer record = ByteBuffer.wrap(records, buffer.position(), (int) size);
+      // number of calls, method id, depth and duration of the root call
+      for (int i = 0; i < 4; i++) {
+        BinaryTraceFormat.readVarLong(record);
+      }
+      buffer.position(buffer.position() + (int) size);
+    }
+  }
+
+  /**
+   * Index a JSON line starting with <code>{"&lt;name&gt;":"&lt;duration&gt;ms"</code>, names are escaped so the first
+   * <code>":"</code> ends the name.
+   */
+  private static void indexJsonRoot(Segment segment, Source source, String line, long timeInMillis, long offset, int length)
+      throws IOException {
+    int nameEnd = line.indexOf("\":\"");
+    int durationEnd = nameEnd < 0 ? -1 : line.indexOf("ms\"", nameEnd);
+    if (nameEnd < 2 || durationEnd < 0) {
+      return;
+    }
+    long durationInNanos;
+    try {
+      durationInNanos = (long) (Double.parseDouble(line.substring(nameEnd + 3, durationEnd)) * 1000000);
+    } catch (NumberFormatException e) {
+      return;
+    }
+    segment.add(timeInMillis, source.sourceId, rootName(line.substring(2, nameEnd)), durationInNanos, offset, length);
+  }
+
+  /**
+   * @return the name of the method without parameters nor the information added after it
+   */
+  static String rootName(String methodName) {
+    int end = methodName.indexOf('(');
+    if (end < 0) {
+      end = methodName.indexOf(" [");
+    }
+    return end < 0 ? methodName : methodName.substring(0, end);
+  }
+
+  /**
+   * Write the results and the index received since the last flush.
+   */
+  void flush() throws IOException {
+    if (!written) {
+      return;
+    }
+    written = false;
+    // results are written before the entries of the index pointing to them
+    for (Source source : sources.values()) {
+      if (source.output != null) {
+        source.output.flush();
+      }
+    }
+    if (segment != null) {
+      segment.flush();
+    }
+  }
+
+  /**
+   * Close the files of a source which has no more connections.
+   */
+  void release(Source source) throws IOException {
+    if (--source.connections == 0) {
+      flush();
+      closeFiles(source);
+      sources.remove(source.directoryName);
+    }
+  }
+
+  /**
+   * Close the files of all sources and the current segment, which gets its postings.
+   */
+  public void close() throws IOException {
+    flush();
+    for (Source source : sources.values()) {
+      closeFiles(source);
+    }
+    sources.clear();
+    if (segment != null) {
+      segment.close();
+      segment = null;
+    }
+  }
+
+  /**
+   * @return the segment of the given time. A new segment is started at the start of each period, the previous one is closed
+   */
+  private Segment segment(long timeInMillis) throws IOException {
+    long start = timeInMillis - timeInMillis % partitionInMillis;
+    // a time before the current segment, when the clock is set back, stays in the current segment
+    if (segment == null || start > segment.start) {
+      if (segment != null) {
+        flush();
+        for (Source source : sources.values()) {
+          closeFiles(source);
+        }
+        segment.close();
+      }
+      segment = new Segment(new File(directory, segmentName(start)), start);
+    }
+    return segment;
+  }
+
+  private static void openFiles(Source source, Segment segment) throws IOException {
+    File sourceDirectory = new File(segment.directory, source.directoryName);
+    if (!sourceDirectory.isDirectory() && !sourceDirectory.mkdirs()) {
+      throw new IOException("Failed to create directory " + sourceDirectory);
+    }
+    File file = new File(sourceDirectory, source.fileName);
+    source.output = new FileTraceOutput(file.getPath(), source.fileHeader);
+    source.output.open();
+    source.outputSize = file.length();
+    // the dictionary of the source is written again in each segment so segments can be read or deleted independently
+    source.dictionaryChannel = FileChannel.open(new File(file.getPath() + ".methods").toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    FileTraceOutput.writeFully(source.dictionaryChannel, ByteBuffer.wrap(source.dictionary()));
+    source.sourceId = segment.sourceId(source.name, source.directoryName + "/" + source.fileName);
+    source.segment = segment;
+  }
+
+  private static void closeFiles(Source source) throws IOException {
+    if (source.output != null) {
+      source.output.close();
+      source.dictionaryChannel.close();
+      source.output = null;
+      source.dictionaryChannel = null;
+      source.segment = null;
+    }
+  }
+
+  static String segmentName(long startInMillis) {
+    return dateFormat("yyyyMMdd-HHmm").format(startInMillis);
+  }
+
+  private static SimpleDateFormat dateFormat(String pattern) {
+    SimpleDateFormat format = new SimpleDateFormat(pattern);
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    format.setLenient(false);
+    return format;
+  }
+
+  /**
+   * Segment being written.
+   */
+  private static class Segment {
+    final File                  directory;
+    final long                  start;
+    final Map<String, Integer>  roots    = new HashMap<>();
+    final List<String>          sources  = new ArrayList<>();
+    /** entry numbers by root and duration bucket, see {@link #postingKey(int, int)} */
+    final Map<Long, Postings>   postings = new HashMap<>();
+    final FileChannel           index;
+    final ByteBuffer            indexBuffer = ByteBuffer.allocate(ENTRY_SIZE * 1024);
+    int                         entries;
+
+    /**
+     * Open the segment, a segment written by a previous run of the aggregator is continued.
+     */
+    Segment(File directory, long start) throws IOException {
+      this.directory = directory;
+      this.start = start;
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("Failed to create directory " + directory);
+      }
+      for (String root : readLines(new File(directory, ROOTS))) {
+        roots.put(root, roots.size());
+      }
+      for (String source : readLines(new File(directory, SOURCES))) {
+        sources.add(source.substring(0, source.indexOf('\t')));
+      }
+      index = FileChannel.open(new File(directory, INDEX).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+          StandardOpenOption.WRITE);
+      // an entry written partially when the aggregator stopped is removed
+      entries = (int) (index.size() / ENTRY_SIZE);
+      index.truncate((long) entries * ENTRY_SIZE);
+      if (entries > 0) {
+        MappedByteBuffer existing = index.map(FileChannel.MapMode.READ_ONLY, 0, (long) entries * ENTRY_SIZE);
+        for (int entry = 0; entry < entries; entry++) {
+          int position = entry * ENTRY_SIZE;
+          posting(existing.getInt(position + 12), existing.getLong(position + 16)).add(entry);
+        }
+      }
+      index.position(index.size());
+      Files.deleteIfExists(new File(directory, POSTINGS).toPath());
+    }
+
+    int sourceId(String name, String path) throws IOException {
+      int id = sources.indexOf(name);
+      if (id < 0) {
+        id = sources.size();
+        sources.add(name);
+        appendLine(new File(directory, SOURCES), name + "\t" + path);
+      }
+      return id;
+    }
+
+    void add(long timeInMillis, int sourceId, String rootName, long durationInNanos, long offset, int length) throws IOException {
+      Integer rootId = roots.get(rootName);
+      if (rootId == null) {
+        rootId = roots.size();
+        roots.put(rootName, rootId);
+        appendLine(new File(directory, ROOTS), rootName);
+      }
+      if (indexBuffer.remaining() < ENTRY_SIZE) {
+        flush();
+      }
+      indexBuffer.putLong(timeInMillis).putInt(sourceId).putInt(rootId).putLong(durationInNanos).putLong(offset).putInt(length);
+      posting(rootId, durationInNanos).add(entries++);
+    }
+
+    private Postings posting(int rootId, long durationInNanos) {
+      Long key = postingKey(rootId, bucket(durationInNanos));
+      Postings entries = postings.get(key);
+      if (entries == null) {
+        entries = new Postings();
+        postings.put(key, entries);
+      }
+      return entries;
+    }
+
+    void flush() throws IOException {
+      indexBuffer.flip();
+      FileTraceOutput.writeFully(index, indexBuffer);
+      indexBuffer.clear();
+    }
+
+    /**
+     * Write the postings: for each root and bucket, the id of the root, the bucket, the number of entries and the entry numbers.
+     */
+    void close() throws IOException {
+      flush();
+      index.close();
+      File file = new File(directory, POSTINGS);
+      File tmp = new File(directory, POSTINGS + ".tmp");
+      try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp.toPath()))) {
+        ByteBuffer header = ByteBuffer.allocate(9);
+        for (Map.Entry<Long, Postings> e : postings.entrySet()) {
+          header.clear();
+          header.putInt((int) (e.getKey() >> 8)).put((byte) (e.getKey() & 0xFF)).putInt(e.getValue().size);
+          out.write(header.array());
+          ByteBuffer entries = ByteBuffer.allocate(e.getValue().size * 4);
+          entries.asIntBuffer().put(e.getValue().entries, 0, e.getValue().size);
+          out.write(entries.array());
+        }
+      }
+      // a segment has complete postings or none
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Failed to rename " + tmp + " to " + file);
+      }
+    }
+  }
+
+  private static class Postings {
+    int[] entries = new int[16];
+    int   size;
+
+    void add(int entry) {
+      if (size == entries.length) {
+        entries = Arrays.copyOf(entries, size * 2);
+      }
+      entries[size++] = entry;
+    }
+  }
+
+  private static long postingKey(int rootId, int bucket) {
+    return (long) rootId << 8 | bucket;
+  }
+
+  /**
+   * @return the duration bucket, the floor of the log2 of the duration in microseconds
+   */
+  static int bucket(long durationInNanos) {
+    return 63 - Long.numberOfLeadingZeros(Math.max(1, durationInNanos / 1000));
+  }
+
+  private static void appendLine(File file, String line) throws IOException {
+    Files.write(file.toPath(), (line + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+  }
+
+  private static List<String> readLines(File file) throws IOException {
+    if (!file.exists()) {
+      return new ArrayList<>();
+    }
+    List<String> lines = new ArrayList<>();
+    for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+      if (!line.isEmpty()) {
+        lines.add(line);
+      }
+    }
+    return lines;
+  }
+
+  /**
+   * Write the root calls of the method taking at least the given time in the period as JSON lines, converting results of the binary
+   * format. Root calls of each JVM in each segment are preceded by a line <code>{"@source":{"name":..,"segment":..}}</code>.
+   *
+   * @param method the name of the root method without parameters, or '*' for all roots
+   * @param source the name of the JVM, null for all JVMs
+   * @return the number of root calls written
+   */
+  public static int query(File directory, String method, long minDurationInNanos, long fromMillis, long toMillis, String source,
+      OutputStream out) throws IOException {
+    File[] segmentDirectories = directory.listFiles(new FileFilter() {
+      @Override public boolean accept(File file) {
+        return file.isDirectory() && file.getName().matches("\\d{8}-\\d{4}");
+      }
+    });
+    if (segmentDirectories == null) {
+      throw new IOException("Not a directory " + directory);
+    }
+    Arrays.sort(segmentDirectories);
+    String root = "*".equals(method) ? null : rootName(method);
+    int count = 0;
+    for (int i = 0; i < segmentDirectories.length; i++) {
+      long start = parseSegmentName(segmentDirectories[i].getName());
+      // times of a segment are before the start of the next one
+      long end = i + 1 < segmentDirectories.length ? parseSegmentName(segmentDirectories[i + 1].getName()) : Long.MAX_VALUE;
+      if (end > fromMillis && start <= toMillis) {
+        count += querySegment(segmentDirectories[i], root, minDurationInNanos, fromMillis, toMillis, source, out);
+      }
+    }
+    return count;
+  }
+
+  private static int querySegment(File segmentDirectory, String root, long minDurationInNanos, long fromMillis, long toMillis, String source,
+      OutputStream out) throws IOException {
+    int rootId = -1;
+    if (root != null) {
+      rootId = readLines(new File(segmentDirectory, ROOTS)).indexOf(root);
+      if (rootId < 0) {
+        return 0;
+      }
+    }
+    List<String> sources = readLines(new File(segmentDirectory, SOURCES));
+    int sourceId = -1;
+    if (source != null) {
+      for (int id = 0; id < sources.size() && sourceId < 0; id++) {
+        if (sources.get(id).startsWith(source + "\t")) {
+          sourceId = id;
+        }
+      }
+      if (sourceId < 0) {
+        return 0;
+      }
+    }
+    File indexFile = new File(segmentDirectory, INDEX);
+    if (!indexFile.exists()) {
+      return 0;
+    }
+    try (FileChannel indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+      int entries = (int) (indexChannel.size() / ENTRY_SIZE);
+      if (entries == 0) {
+        return 0;
+      }
+      MappedByteBuffer index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, (long) entries * ENTRY_SIZE);
+      int[] candidates = candidates(new File(segmentDirectory, POSTINGS), entries, rootId, bucket(minDurationInNanos));
+      // matching entries grouped by source, in the order they were received
+      List<List<Integer>> matches = new ArrayList<>();
+      for (int s = 0; s < sources.size(); s++) {
+        matches.add(new ArrayList<Integer>());
+      }
+      for (int entry : candidates) {
+        int position = entry * ENTRY_SIZE;
+        long time = index.getLong(position);
+        int entrySourceId = index.getInt(position + 8);
+        if (time >= fromMillis && time <= toMillis && (sourceId < 0 || entrySourceId == sourceId)
+            && (rootId < 0 || index.getInt(position + 12) == rootId) && index.getLong(position + 16) >= minDurationInNanos
+            && entrySourceId < sources.size()) {
+          matches.get(entrySourceId).add(entry);
+        }
+      }
+      int count = 0;
+      for (int s = 0; s < sources.size(); s++) {
+        if (!matches.get(s).isEmpty()) {
+          String[] nameAndPath = sources.get(s).split("\t");
+          out.write(("{\"@source\":{\"name\":\"" + escape(nameAndPath[0]) + "\",\"segment\":\"" + segmentDirectory.getName() + "\"}}\n")
+              .getBytes(StandardCharsets.UTF_8));
+          count += write(new File(segmentDirectory, nameAndPath[1]), index, matches.get(s), out);
+        }
+      }
+      return count;
+    }
+  }
+
+  /**
+   * @return the entries of the root in buckets from the given one found in the postings, all entries if there are no postings
+   */
+  private static int[] candidates(File postingsFile, int entries, int rootId, int minBucket) throws IOException {
+    if (!postingsFile.exists()) {
+      int[] all = new int[entries];
+      for (int entry = 0; entry < entries; entry++) {
+        all[entry] = entry;
+      }
+      return all;
+    }
+    ByteBuffer postings = ByteBuffer.wrap(Files.readAllBytes(postingsFile.toPath()));
+    int[] candidates = new int[16];
+    int size = 0;
+    while (postings.remaining() >= 9) {
+      int postingRootId = postings.getInt();
+      int bucket = postings.get();
+      int count = postings.getInt();
+      if ((rootId < 0 || postingRootId == rootId) && bucket >= minBucket) {
+        if (size + count > candidates.length) {
+          candidates = Arrays.copyOf(candidates, Math.max(candidates.length * 2, size + count));
+        }
+        postings.asIntBuffer().get(candidates, size, count);
+        size += count;
+      }
+      postings.position(postings.position() + count * 4);
+    }
+    candidates = Arrays.copyOf(candidates, size);
+    Arrays.sort(candidates);
+    return candidates;
+  }
+
+  /**
+   * Write the root calls of the entries read from the file of a source.
+   */
+  private static int write(File file, MappedByteBuffer index, List<Integer> entries, OutputStream out) throws IOException {
+    boolean binary;
+    try (InputStream in = new FileInputStream(file)) {
+      long probeCostInNanos = BinaryTraceFormat.readHeader(in);
+      binary = probeCostInNanos >= 0;
+      if (binary) {
+        // ids of the binary format are only valid with the dictionary of the JVM
+        MethodRegistry.clear();
+        TraceConverter.loadDictionary(file.getPath() + ".methods");
+        ProbeCalibration.callCostInNanos(probeCostInNanos);
+      }
+    }
+    JsonTraceFormat jsonFormat = new JsonTraceFormat();
+    ArrayCallStack callStack = new ArrayCallStack();
+    int count = 0;
+    try (RandomAccessFile data = new RandomAccessFile(file, "r")) {
+      for (int entry : entries) {
+        int position = entry * ENTRY_SIZE;
+        long offset = index.getLong(position + 24);
+        byte[] record = new byte[index.getInt(position + 32)];
+        // entries of a segment being written can point after the results written so far
+        if (offset + record.length > data.length()) {
+          continue;
+        }
+        data.seek(offset);
+        data.readFully(record);
+        if (binary) {
+          BinaryTraceFormat.readRecord(new ByteArrayInputStream(record), callStack);
+          record = jsonFormat.encode(callStack);
+        }
+        if (record != null) {
+          out.write(record);
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  private static String escape(String text) {
+    return text.replace("\\", "\\\\").replace("\"", "\\\"");
+  }
+
+  static long parseSegmentName(String name) throws IOException {
+    try {
+      return dateFormat("yyyyMMdd-HHmm").parse(name).getTime();
+    } catch (ParseException e) {
+      throw new IOException("Invalid segment name " + name, e);
+    }
+  }
+
+  /**
+   * @return the time in milliseconds of a date in UTC like 2026-10-18T10:30, 2026-10-18T10:30:15 or 2026-10-18, or of a number of
+   * milliseconds since the epoch
+   */
+  static long parseTime(String time) throws ParseException {
+    if (time.matches("\\d+")) {
+      return Long.parseLong(time);
+    }
+    for (String pattern : new String[] {"yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd'T'HH:mm", "yyyy-MM-dd"}) {
+      try {
+        return dateFormat(pattern).parse(time).getTime();
+      } catch (ParseException e) {
+        // next pattern
+      }
+    }
+    throw new ParseException("Invalid time " + time, 0);
+  }
+
+  public static void main(String[] args) {
+    if (args.length < 2 || args.length > 6) {
+      System.out.println("Usage: java -cp <PATH_TO_JAR> TraceStore <DIRECTORY> <METHOD>|* [<MIN DURATION IN MS> [<FROM> [<TO> [<SOURCE>]]]]\n"
+          + "Writes as JSON lines the root calls of the method, given without parameters like com.test.Test.get, taking at least the\n"
+          + "given time between both dates, from the store written by the SocketAggregator in the directory. Dates are in UTC like\n"
+          + "2026-10-18T10:30, 2026-10-18T10:30:15 or 2026-10-18, or in milliseconds since the epoch. The source is the name of a JVM.");
+      System.exit(9);
+    }
+    try {
+      long minDurationInNanos = args.length > 2 ? (long) (Double.parseDouble(args[2]) * 1000000) : 0;
+      long fromMillis = args.length > 3 ? parseTime(args[3]) : 0;
+      long toMillis = args.length > 4 ? parseTime(args[4]) : Long.MAX_VALUE;
+      OutputStream out = new BufferedOutputStream(System.out);
+      int count = query(new File(args[0]), args[1], minDurationInNanos, fromMillis, toMillis, args.length > 5 ? args[5] : null, out);
+      out.flush();
+      System.err.println(count + " root calls found");
+    } catch (IOException | ParseException e) {
+      e.printStackTrace();
+      System.exit(8);
+    }
+  }
+}
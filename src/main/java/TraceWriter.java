@@ -0,0 +1,167 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes results on a dedicated thread. Threads finishing a root call only add the result to a lock free queue, the writer thread
+ * wakes up at a fixed interval and writes everything queued in batches to the {@link TraceOutput}. When the queue is full, results are
+ * dropped and counted instead of blocking the application.
+ *
+ * @author olivier martin
+ */
+public class TraceWriter implements Runnable {
+
+  public static final long DEFAULT_FLUSH_INTERVAL_IN_MILLIS = 200;
+  public static final int  DEFAULT_QUEUE_SIZE               = 10000;
+
+  private final ConcurrentLinkedQueue<byte[]> queue     = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger                 queueSize = new AtomicInteger();
+  private final AtomicLong                    dropped   = new AtomicLong();
+  private final TraceOutput                   output;
+  private final String                        dictionaryFilePath;
+  private final int                           maxQueueSize;
+  private final long                          flushIntervalInNanos;
+  private       boolean                       opened;
+  private       FileChannel                   dictionaryChannel;
+  private       int                           methodsInDictionary;
+  private       long                          droppedReported;
+  private volatile long                       bytesWritten;
+  private       Thread                        thread;
+  private volatile boolean                    closed;
+
+  /**
+   * @param dictionaryFilePath the file the dictionary of methods is written to, null when the output sends it, see
+   *                           {@link TraceOutput#dictionary(byte[])}
+   */
+  public TraceWriter(TraceOutput output, String dictionaryFilePath, int maxQueueSize, long flushIntervalInMillis) {
+    this.output = output;
+    this.dictionaryFilePath = dictionaryFilePath;
+    this.maxQueueSize = maxQueueSize;
+    this.flushIntervalInNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalInMillis);
+  }
+
+  /**
+   * Open the output and start the writer thread.
+   */
+  public void start() throws IOException {
+    output.open();
+    opened = true;
+    if (dictionaryFilePath != null) {
+      dictionaryChannel = FileChannel.open(new File(dictionaryFilePath).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.APPEND);
+    }
+    thread = new Thread(this, "JavaPerfAgent-writer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Queue content to write. Never blocks.
+   *
+   * @return false if the queue is full and the content was dropped
+   */
+  public boolean offer(byte[] content) {
+    if (queueSize.incrementAndGet() > maxQueueSize) {
+      queueSize.decrementAndGet();
+      dropped.incrementAndGet();
+      return false;
+    }
+    queue.offer(content);
+    return true;
+  }
+
+  public int queueSize() {
+    return queueSize.get();
+  }
+
+  public long dropped() {
+    return dropped.get();
+  }
+
+  /**
+   * @return the number of bytes of results written to the output, the dictionary is not counted
+   */
+  public long bytesWritten() {
+    return bytesWritten;
+  }
+
+  @Override public void run() {
+    while (!closed) {
+      LockSupport.parkNanos(this, flushIntervalInNanos);
+      try {
+        drain();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Write all content queued. Only one thread can drain the queue at a time.
+   */
+  synchronized void drain() throws IOException {
+    if (!opened) {
+      return;
+    }
+    appendNewMethodsToDictionary();
+    byte[] content;
+    while ((content = queue.poll()) != null) {
+      queueSize.decrementAndGet();
+      output.write(content);
+      bytesWritten += content.length;
+    }
+    output.flush();
+    long droppedCount = dropped.get();
+    if (droppedCount != droppedReported) {
+      droppedReported = droppedCount;
+      System.setProperty("JavaPerfAgent.output.dropped", String.valueOf(droppedCount));
+    }
+  }
+
+  /**
+   * Write remaining content and stop the writer thread.
+   */
+  public void close() {
+    closed = true;
+    LockSupport.unpark(thread);
+    synchronized (this) {
+      try {
+        drain();
+        opened = false;
+        output.close();
+        if (dictionaryChannel != null) {
+          dictionaryChannel.close();
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Append methods registered since the last drain to the dictionary. Each line of the dictionary contains the id of a method and
+   * its name separated by a tab.
+   */
+  private void appendNewMethodsToDictionary() throws IOException {
+    int size = MethodRegistry.size();
+    if (methodsInDictionary < size) {
+      StringBuilder sb = new StringBuilder();
+      for (; methodsInDictionary < size; methodsInDictionary++) {
+        sb.append(methodsInDictionary).append('\t').append(MethodRegistry.name(methodsInDictionary)).append('\n');
+      }
+      byte[] lines = sb.toString().getBytes(StandardCharsets.UTF_8);
+      if (dictionaryChannel != null) {
+        FileTraceOutput.writeFully(dictionaryChannel, ByteBuffer.wrap(lines));
+      }
+      output.dictionary(lines);
+    }
+  }
+}
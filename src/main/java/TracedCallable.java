@@ -0,0 +1,37 @@
+import java.util.concurrent.Callable;
+
+/**
+ * Callable submitted to an executor from a recorded call. Calls of the task are recorded as a root call linked to the submitting call
+ * by the task id. See {@link PerfAgentMonitor#wrapTask(Callable)}.
+ *
+ * @author olivier martin
+ */
+public class TracedCallable<V> implements Callable<V> {
+
+  private final Callable<V> task;
+  private final long        taskId;
+  private final long        submitTime;
+
+  TracedCallable(Callable<V> task, long taskId, long submitTime) {
+    this.task = task;
+    this.taskId = taskId;
+    this.submitTime = submitTime;
+  }
+
+  @Override public V call() throws Exception {
+    int monitorsIndex = PerfAgentMonitor.beforeTask(taskId, submitTime);
+    V result;
+    try {
+      result = task.call();
+    } catch (Throwable e) {
+      PerfAgentMonitor.afterThrowing(e, monitorsIndex, false);
+      throw e;
+    }
+    PerfAgentMonitor.afterMethod(monitorsIndex, false);
+    return result;
+  }
+
+  @Override public String toString() {
+    return task.toString();
+  }
+}
@@ -0,0 +1,33 @@
+/**
+ * Runnable submitted to an executor from a recorded call. Calls of the task are recorded as a root call linked to the submitting call
+ * by the task id. See {@link PerfAgentMonitor#wrapTask(Runnable)}.
+ *
+ * @author olivier martin
+ */
+public class TracedRunnable implements Runnable {
+
+  private final Runnable task;
+  private final long     taskId;
+  private final long     submitTime;
+
+  TracedRunnable(Runnable task, long taskId, long submitTime) {
+    this.task = task;
+    this.taskId = taskId;
+    this.submitTime = submitTime;
+  }
+
+  @Override public void run() {
+    int monitorsIndex = PerfAgentMonitor.beforeTask(taskId, submitTime);
+    try {
+      task.run();
+    } catch (Throwable e) {
+      PerfAgentMonitor.afterThrowing(e, monitorsIndex, false);
+      throw e;
+    }
+    PerfAgentMonitor.afterMethod(monitorsIndex, false);
+  }
+
+  @Override public String toString() {
+    return task.toString();
+  }
+}
@@ -0,0 +1,110 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Call stack keeping one {@link TrackInfo} object per call. This is the default call stack.
+ *
+ * @author olivier martin
+ */
+public class TrackInfoCallStack extends CallStack {
+
+  private final List<TrackInfo> trackInfos = new ArrayList<>();
+
+  private static class TrackInfo {
+    int      methodId;
+    int      deep;
+    long     startTime;
+    long     durationInNanos;
+    int      paramsStart;
+    String   thrown;
+    int      nestedCalls;
+    int      count = 1;
+    long     minInNanos;
+    long     maxInNanos;
+
+    TrackInfo(int methodId,
+        int deep,
+        long startTime,
+        int paramsStart) {
+      this.methodId = methodId;
+      this.deep = deep;
+      this.startTime = startTime;
+      this.paramsStart = paramsStart;
+    }
+  }
+
+  @Override int push(int methodId, int deep, long startTime) {
+    int index = trackInfos.size();
+    trackInfos.add(new TrackInfo(methodId, deep, startTime, params.size()));
+    return index;
+  }
+
+  @Override void truncateCalls(int size) {
+    if (size < trackInfos.size()) {
+      trackInfos.subList(size, trackInfos.size()).clear();
+    }
+  }
+
+  @Override int size() {
+    return trackInfos.size();
+  }
+
+  @Override int methodId(int index) {
+    return trackInfos.get(index).methodId;
+  }
+
+  @Override int deep(int index) {
+    return trackInfos.get(index).deep;
+  }
+
+  @Override long startTime(int index) {
+    return trackInfos.get(index).startTime;
+  }
+
+  @Override long durationInNanos(int index) {
+    return trackInfos.get(index).durationInNanos;
+  }
+
+  @Override void durationInNanos(int index, long value) {
+    trackInfos.get(index).durationInNanos = value;
+  }
+
+  @Override int paramsStart(int index) {
+    return trackInfos.get(index).paramsStart;
+  }
+
+  @Override String thrown(int index) {
+    return trackInfos.get(index).thrown;
+  }
+
+  @Override void thrown(int index, String exceptionClassName) {
+    trackInfos.get(index).thrown = exceptionClassName;
+  }
+
+  @Override int nestedCalls(int index) {
+    return trackInfos.get(index).nestedCalls;
+  }
+
+  @Override void nestedCalls(int index, int value) {
+    trackInfos.get(index).nestedCalls = value;
+  }
+
+  @Override int count(int index) {
+    return trackInfos.get(index).count;
+  }
+
+  @Override long minInNanos(int index) {
+    return trackInfos.get(index).minInNanos;
+  }
+
+  @Override long maxInNanos(int index) {
+    return trackInfos.get(index).maxInNanos;
+  }
+
+  @Override void aggregate(int index, int count, long minInNanos, long maxInNanos) {
+    TrackInfo trackInfo = trackInfos.get(index);
+    trackInfo.count = count;
+    trackInfo.minInNanos = minInNanos;
+    trackInfo.maxInNanos = maxInNanos;
+  }
+}
@@ -0,0 +1,31 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Add the probes of {@link PerfAgentMonitor} to the tracked methods of a class.
+ *
+ * @author olivier martin
+ */
+public abstract class Weaver {
+
+  /** number of methods woven since the start, a method is counted again when its class is retransformed */
+  private static final AtomicLong methodsWoven = new AtomicLong();
+
+  static void methodsWoven(int count) {
+    methodsWoven.addAndGet(count);
+  }
+
+  static long methodsWoven() {
+    return methodsWoven.get();
+  }
+
+  /**
+   * @param loader          the class loader defining the class, null for the bootstrap class loader
+   * @param className       the name of the class with dots
+   * @param classfileBuffer the bytecode of the class
+   * @param trackedMethods  the methods of the class to track
+   * @param debug           specify if debugging is activated for this class
+   * @return the bytecode of the class with the probes, null if the class is not modified
+   */
+  public abstract byte[] weave(ClassLoader loader, String className, byte[] classfileBuffer, ClassMatcher.Methods trackedMethods,
+      boolean debug) throws Exception;
+}
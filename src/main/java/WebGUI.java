@@ -85,7 +85,9 @@ public class WebGUI extends DefaultWebController {
   }
 
   private String readLine(int lineNumber) {
-    if (supportShellCommand()) {
+    if (isCompressed(new File(currentFilePath))) {
+      return lineContentOfCompressedFile(lineNumber);
+    } else if (supportShellCommand()) {
       return lineContentWithShellCommand(lineNumber);
     } else {
       return lineContentWithJava(lineNumber);
@@ -126,23 +128,52 @@ public class WebGUI extends DefaultWebController {
     return "{}";
   }
 
+  /**
+   * Decompress only the block of the file containing the line.
+   */
+  private String lineContentOfCompressedFile(int lineNumber) {
+    String line = null;
+    try {
+      line = CompressedTraceInput.readLine(new File(currentFilePath), lineNumber - 1);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    if (line != null) {
+      if(line.startsWith("["))
+        return line.substring(1, line.length()-1);
+      return line;
+    }
+    return "{}";
+  }
+
+  private boolean isCompressed(File file) {
+    try {
+      return CompressedTraceInput.isCompressed(file);
+    } catch (IOException e) {
+      e.printStackTrace();
+      return false;
+    }
+  }
+
   private String readFirstContentAsJSON(File file) {
     int count = 0;
     int nbLines = -1;
-    if (supportShellCommand()) {
+    if (supportShellCommand() && !isCompressed(file)) {
       nbLines = nbLinesWithShellCommand(file);
     }
-    FileInputStream fileInputStream = null;
+    InputStream fileInputStream = null;
     Scanner sc = null;
     StringBuilder buffer = new StringBuilder("[");
     try {
-      fileInputStream = new FileInputStream(file);
+      fileInputStream = CompressedTraceInput.open(file);
       sc = new Scanner(fileInputStream, "UTF-8");
 //      int max = 100;
       while (sc.hasNextLine()) {
         String line = sc.nextLine();
         count++;
 //        if(count>max) break;
+        if (line.startsWith(JsonTraceFormat.META_LINE_PREFIX))
+          continue;
         if (buffer.length()>1)
           buffer.append(",");
         if (nbLines >= 0) {
@@ -0,0 +1,112 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure each {@link Clock}: the cost of a read from one and several threads, the cost of a recorded call with the clock, and its
+ * accuracy, as the smallest step observed between two reads and the mean difference with {@link System#nanoTime()}.
+ * <p>
+ * Usage: java -cp &lt;agent classes and dependencies&gt; ClockBenchmark [&lt;coarse clock resolution in micros&gt;] [&lt;threads&gt;]
+ *
+ * @author olivier martin
+ */
+public class ClockBenchmark {
+
+  private static final int READS = 50000000;
+  private static final int CALLS = 10000000;
+
+  public static void main(String[] args) throws Exception {
+    long resolutionInMicros = args.length > 0 ? Long.parseLong(args[0]) : CoarseClock.DEFAULT_RESOLUTION_IN_MICROS;
+    int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+    Clock[] clocks = {new NanoClock(), new CoarseClock(resolutionInMicros)};
+    for (Clock clock : clocks) {
+      clock.start();
+      String name = clock.getClass().getSimpleName();
+      // first round warms up the JIT
+      readCostInNanos(clock);
+      System.out.println(String.format("%s: %.2fns per read, %.2fns per read with %d threads", name, readCostInNanos(clock),
+          concurrentReadCostInNanos(clock, threads), threads));
+      callCostInNanos(clock);
+      System.out.println(String.format("%s: %.2fns per recorded call", name, callCostInNanos(clock)));
+      System.out.println(String.format("%s: smallest step %dns, mean difference with System.nanoTime() %dns", name, smallestStepInNanos(clock),
+          meanErrorInNanos(clock)));
+    }
+  }
+
+  private static double readCostInNanos(Clock clock) {
+    long sum = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < READS; i++) {
+      sum += clock.nanoTime();
+    }
+    long duration = System.nanoTime() - start;
+    // keeps the loop from being removed
+    if (sum == 42) {
+      System.out.println();
+    }
+    return (double) duration / READS;
+  }
+
+  private static double concurrentReadCostInNanos(final Clock clock, int threads) throws InterruptedException {
+    final double[] costs = new double[threads];
+    List<Thread> readers = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      final int index = t;
+      Thread reader = new Thread() {
+        @Override public void run() {
+          costs[index] = readCostInNanos(clock);
+        }
+      };
+      readers.add(reader);
+      reader.start();
+    }
+    double total = 0;
+    for (int t = 0; t < threads; t++) {
+      readers.get(t).join();
+      total += costs[t];
+    }
+    return total / threads;
+  }
+
+  /**
+   * Record calls under a root call which never ends. Calls are removed as soon as they end because they are below the minimum time.
+   */
+  private static double callCostInNanos(Clock clock) {
+    PerfAgentMonitor.clock(clock);
+    PerfAgentMonitor.minTimeToTrackInMicros(TimeUnit.HOURS.toMicros(1));
+    int methodId = MethodRegistry.register("ClockBenchmark.call()");
+    if (PerfAgentMonitor.beforeMethod(methodId, false) < 0) {
+      throw new IllegalStateException("The root call is not recorded");
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < CALLS; i++) {
+      PerfAgentMonitor.afterMethod(PerfAgentMonitor.beforeMethod(methodId, false), false);
+    }
+    return (double) (System.nanoTime() - start) / CALLS;
+  }
+
+  private static long smallestStepInNanos(Clock clock) {
+    long smallest = Long.MAX_VALUE;
+    long previous = clock.nanoTime();
+    long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200);
+    while (System.nanoTime() < end) {
+      long time = clock.nanoTime();
+      if (time != previous) {
+        smallest = Math.min(smallest, time - previous);
+        previous = time;
+      }
+    }
+    return smallest;
+  }
+
+  private static long meanErrorInNanos(Clock clock) throws InterruptedException {
+    long total = 0;
+    int samples = 1000;
+    for (int i = 0; i < samples; i++) {
+      total += Math.abs(System.nanoTime() - clock.nanoTime());
+      // reads at various moments between two updates of a coarse clock
+      Thread.sleep(0, 100000 + i * 37 % 100000);
+    }
+    return total / samples;
+  }
+}
@@ -0,0 +1,75 @@
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measure the cost of encoding a root call with each {@link TraceFormat}: the time and the bytes allocated per root call. The root call
+ * has sub calls on several levels, calls with parameters which must be escaped in JSON, aggregated calls and a call ending with an
+ * exception.
+ * <p>
+ * Usage: java -cp &lt;agent classes and dependencies&gt; EncodeBenchmark [&lt;calls per root call&gt;]
+ *
+ * @author olivier martin
+ */
+public class EncodeBenchmark {
+
+  private static final int ENCODES = 200000;
+
+  public static void main(String[] args) {
+    int calls = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+    CallStack callStack = rootCall(calls);
+    TraceFormat[] formats = {new JsonTraceFormat(), new BinaryTraceFormat()};
+    for (TraceFormat format : formats) {
+      String name = format.getClass().getSimpleName();
+      // first round warms up the JIT
+      encode(format, callStack);
+      long allocatedBefore = allocatedBytes();
+      long start = System.nanoTime();
+      long size = encode(format, callStack);
+      long duration = System.nanoTime() - start;
+      long allocated = allocatedBytes() - allocatedBefore;
+      System.out.println(String.format("%s: %d bytes, %.0fns and %d bytes allocated per root call of %d calls", name, size / ENCODES,
+          (double) duration / ENCODES, allocated / ENCODES, calls));
+    }
+  }
+
+  private static long encode(TraceFormat format, CallStack callStack) {
+    long size = 0;
+    for (int i = 0; i < ENCODES; i++) {
+      size += format.encode(callStack).length;
+    }
+    return size;
+  }
+
+  private static CallStack rootCall(int calls) {
+    int rootId = MethodRegistry.register("com.example.Controller.handle(java.lang.String,int)");
+    int serviceId = MethodRegistry.register("com.example.Service.find(java.lang.String)");
+    int daoId = MethodRegistry.register("com.example.Dao.query(java.lang.String,java.lang.Object[])");
+    CallStack callStack = new TrackInfoCallStack();
+    int root = callStack.push(rootId, 1, 0);
+    callStack.params.add("/orders?id=\"42\"");
+    callStack.params.add(7);
+    callStack.durationInNanos(root, 123456789L);
+    for (int i = 1; i < calls; i++) {
+      int deep = 2 + (i - 1) % 3;
+      int index = callStack.push(deep == 2 ? serviceId : daoId, deep, i);
+      if (deep == 2) {
+        callStack.params.add("name \\ été " + i);
+      } else {
+        callStack.params.add("select * from t where a = 'x'\n\tand b = ?");
+        callStack.params.add("[1, 2]");
+      }
+      callStack.durationInNanos(index, 1000L * i + 17);
+      callStack.nestedCalls(index, deep == 2 ? 2 : 0);
+      if (i % 10 == 0) {
+        callStack.aggregate(index, 3, 250, 1250);
+      }
+      if (i % 25 == 0) {
+        callStack.thrown(index, "java.sql.SQLException");
+      }
+    }
+    return callStack;
+  }
+
+  private static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
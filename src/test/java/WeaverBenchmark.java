@@ -0,0 +1,80 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.tuple.Pair;
+
+/**
+ * Measure the time spent to weave classes with each {@link Weaver}. Classes are read from the jars of the class path and all their
+ * methods are tracked, like with a configuration tracking '*'.
+ * <p>
+ * Usage: java -cp &lt;agent classes and dependencies&gt; WeaverBenchmark [&lt;number of classes&gt;] [&lt;iterations&gt;]
+ *
+ * @author olivier martin
+ */
+public class WeaverBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int maxClasses = args.length > 0 ? Integer.parseInt(args[0]) : 3000;
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    List<Pair<String, byte[]>> classes = readClasses(maxClasses);
+    System.out.println(classes.size() + " classes read from the class path");
+
+    Map<String, Pair<Map<String, Boolean>, Boolean>> trackedClasses = new HashMap<>();
+    trackedClasses.put("*", Pair.of((Map<String, Boolean>) new HashMap<String, Boolean>(), false));
+    ClassMatcher classMatcher = new ClassMatcher(trackedClasses, new HashMap<String, Pair<Map<String, Boolean>, Boolean>>());
+
+    Weaver[] weavers = {new JavassistWeaver(false, false, false, false), new BytecodeWeaver(false, false, false)};
+    for (Weaver weaver : weavers) {
+      // first iteration warms up the JIT and the class pools
+      for (int i = 0; i <= iterations; i++) {
+        long start = System.nanoTime();
+        int woven = 0;
+        int failed = 0;
+        for (Pair<String, byte[]> clazz : classes) {
+          String classNameWithSlashes = clazz.getLeft();
+          try {
+            byte[] byteCode = weaver.weave(WeaverBenchmark.class.getClassLoader(), classNameWithSlashes.replace('/', '.'), clazz.getRight(),
+                classMatcher.match(classNameWithSlashes), false);
+            if (byteCode != null) {
+              woven++;
+            }
+          } catch (Exception e) {
+            failed++;
+          }
+        }
+        long durationInMillis = (System.nanoTime() - start) / 1000000;
+        if (i > 0) {
+          System.out.println(String.format("%s: %d classes woven in %dms (%d failed)", weaver.getClass().getSimpleName(), woven,
+              durationInMillis, failed));
+        }
+      }
+    }
+  }
+
+  private static List<Pair<String, byte[]>> readClasses(int maxClasses) throws IOException {
+    List<Pair<String, byte[]>> classes = new ArrayList<>();
+    for (String path : System.getProperty("java.class.path").split(File.pathSeparator)) {
+      if (path.endsWith(".jar")) {
+        try (JarFile jar = new JarFile(path)) {
+          Enumeration<JarEntry> entries = jar.entries();
+          while (entries.hasMoreElements() && classes.size() < maxClasses) {
+            JarEntry entry = entries.nextElement();
+            String name = entry.getName();
+            if (name.endsWith(".class") && !name.endsWith("module-info.class")) {
+              classes.add(Pair.of(name.substring(0, name.length() - ".class".length()), IOUtils.toByteArray(jar.getInputStream(entry))));
+            }
+          }
+        }
+      }
+    }
+    return classes;
+  }
+}
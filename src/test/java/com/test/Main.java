@@ -8,6 +8,7 @@ import com.test.tracked.AnotherSimpleCall;
 import com.test.tracked.AsynchronousCall;
 import com.test.tracked.SimpleCall;
 import com.test.tracked.SuperCallToIgnore;
+import com.test.tracked.ThrowingConstructorCall;
 
 /**
  * Created by olmartin on 2015-02-02.
@@ -28,5 +29,11 @@ public class Main {
     }
     new NotTrackedCalled().call();
     new SuperCallToIgnore().call();
+    try {
+      new ThrowingConstructorCall((String) null);
+    } catch (IllegalArgumentException e) {
+      // the call of the constructor ends with the exception
+    }
+    new SimpleCall().aSimpleCall();
   }
 }
@@ -0,0 +1,19 @@
+package com.test.tracked;
+
+/**
+ * A constructor whose call to another constructor throws, tracked with $trackConstructors. The call must be ended so that the calls
+ * following it are not nested under it.
+ */
+public class ThrowingConstructorCall {
+
+  public ThrowingConstructorCall(int value) {
+    if (value < 0) {
+      throw new IllegalArgumentException("negative value " + value);
+    }
+    System.out.println("ThrowingConstructorCall from "+getClass().getName());
+  }
+
+  public ThrowingConstructorCall(String value) {
+    this(value == null ? -1 : value.length());
+  }
+}